@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Utils.escapeStringRfc2254 compared with the former StringTokenizer based implementation.
+ * Run with {@code -prof gc} to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeRfc2254Benchmark {
+
+    @Param({ "jacksonm", "cn=Michael Jackson,ou=people,o=TEST", "cn=a\\,b (test)*,ou=groups,o=TEST" })
+    public String input;
+
+    @Benchmark
+    public String escape() {
+        return Utils.escapeStringRfc2254(input);
+    }
+
+    @Benchmark
+    public String escapeWithTokenizer() {
+
+        final StringTokenizer tok = new StringTokenizer(input, "\\*()\000", true);
+
+        if (tok.countTokens() == 0) {
+            return input;
+        }
+
+        final StringBuilder out = new StringBuilder();
+        while (tok.hasMoreTokens()) {
+            final String s = tok.nextToken();
+
+            if (s.equals("*")) {
+                out.append("\\2a");
+            } else if (s.equals("(")) {
+                out.append("\\28");
+            } else if (s.equals(")")) {
+                out.append("\\29");
+            } else if (s.equals("\\")) {
+                out.append("\\5c");
+            } else if (s.equals("\000")) {
+                out.append("\\00");
+            } else {
+                out.append(s);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -14,10 +14,12 @@
 
 package com.floragunn.dlic.auth.ldap;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import org.ldaptive.LdapAttribute;
 import org.ldaptive.LdapEntry;
+import org.ldaptive.ReturnAttributes;
 
 import com.floragunn.searchguard.user.AuthCredentials;
 import com.floragunn.searchguard.user.User;
@@ -27,11 +29,28 @@ public class LdapUser extends User {
     private static final long serialVersionUID = 1L;
     private final LdapEntry userEntry;
     private final String originalUsername;
+    private final long userEntryTimestamp;
+    private final String[] userEntryAttributes;
+    private final String userEntryDirectory;
 
     public LdapUser(final String name, String originalUsername, final LdapEntry userEntry, final AuthCredentials credentials) {
+        this(name, originalUsername, userEntry, credentials, System.currentTimeMillis(), null, null);
+    }
+
+    /**
+     * @param userEntryTimestamp when {@code userEntry} was read from ldap (ms since the epoch), 0 if it only contains the dn
+     *        because the entry could not be read
+     * @param userEntryAttributes the attributes {@code userEntry} was read with, null if not known
+     * @param userEntryDirectory the directory (hosts and user base) {@code userEntry} was read from, null if not known
+     */
+    public LdapUser(final String name, String originalUsername, final LdapEntry userEntry, final AuthCredentials credentials,
+            final long userEntryTimestamp, final String[] userEntryAttributes, final String userEntryDirectory) {
         super(name, null, credentials);
         this.originalUsername = originalUsername;
         this.userEntry = userEntry;
+        this.userEntryTimestamp = userEntryTimestamp;
+        this.userEntryAttributes = userEntryAttributes;
+        this.userEntryDirectory = userEntryDirectory;
         Map<String, String> attributes = getCustomAttributesMap();
         attributes.put("ldap.original.username", originalUsername);
         attributes.put("ldap.dn", userEntry.getDn());
@@ -45,6 +64,63 @@ public class LdapUser extends User {
         return userEntry;
     }
     
+    public long getUserEntryTimestamp() {
+        return userEntryTimestamp;
+    }
+
+    public String[] getUserEntryAttributes() {
+        return userEntryAttributes;
+    }
+
+    public String getUserEntryDirectory() {
+        return userEntryDirectory;
+    }
+
+    /**
+     * @param maxAge in ms, negative for any age
+     * @param directory the directory the entry must have been read from
+     * @param attributes the attributes the entry must have been read with
+     * @return the user entry if it was read from {@code directory} at most {@code maxAge} ms ago with all of {@code attributes}
+     *         (or with all user attributes), otherwise null
+     */
+    public LdapEntry getUserEntry(final long maxAge, final String directory, final String... attributes) {
+        if (userEntryTimestamp <= 0 || (maxAge >= 0 && System.currentTimeMillis() - userEntryTimestamp > maxAge)) {
+            return null;
+        }
+        if (userEntryDirectory == null || !userEntryDirectory.equals(directory) || !hasUserEntryAttributes(attributes)) {
+            return null;
+        }
+        return userEntry;
+    }
+
+    private boolean hasUserEntryAttributes(final String... attributes) {
+
+        if (userEntryAttributes == null) {
+            return false;
+        }
+
+        if (Arrays.asList(userEntryAttributes).contains("*") || ReturnAttributes.NONE.equalsAttributes(attributes)) {
+            return true;
+        }
+
+        for (final String attribute: attributes) {
+            boolean found = false;
+
+            for (final String read: userEntryAttributes) {
+                if (read.equalsIgnoreCase(attribute)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     public String getDn() {
         return userEntry.getDn();
     }
@@ -17,28 +17,55 @@ package com.floragunn.dlic.auth.ldap.backend;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.security.AccessController;
+import java.security.GeneralSecurityException;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
 
 import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.SpecialPermission;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.ldaptive.BindRequest;
 import org.ldaptive.Connection;
+import org.ldaptive.LdapAttribute;
 import org.ldaptive.Credential;
 import org.ldaptive.LdapEntry;
 import org.ldaptive.LdapException;
 import org.ldaptive.Response;
+import org.ldaptive.ReturnAttributes;
 import org.ldaptive.SearchScope;
 
 import com.floragunn.dlic.auth.ldap.LdapUser;
+import com.floragunn.dlic.auth.ldap.util.AuthenticationCache;
 import com.floragunn.dlic.auth.ldap.util.ConfigConstants;
+import com.floragunn.dlic.auth.ldap.util.FilterTemplate;
+import com.floragunn.dlic.auth.ldap.util.LdapConnectionPool;
 import com.floragunn.dlic.auth.ldap.util.LdapHelper;
+import com.floragunn.dlic.auth.ldap.util.SingleFlight;
 import com.floragunn.dlic.auth.ldap.util.Utils;
 import com.floragunn.searchguard.auth.AuthenticationBackend;
 import com.floragunn.searchguard.user.AuthCredentials;
@@ -46,7 +73,7 @@ import com.floragunn.searchguard.user.User;
 
 public class LDAPAuthenticationBackend implements AuthenticationBackend {
 
-    static final String ZERO_PLACEHOLDER = "{0}";
+    static final int ESCAPE_ZERO = 1; //escape mask of FilterTemplate, {0} only
     static final String DEFAULT_USERBASE = "";
     static final String DEFAULT_USERSEARCH_PATTERN = "(sAMAccountName={0})";
 
@@ -58,32 +85,179 @@ public class LDAPAuthenticationBackend implements AuthenticationBackend {
 
     private final Settings settings;
     private final Path configPath;
+    private final LDAPConnectionFactory connectionFactory;
+    private final LdapConnectionPool connectionPool;
+    // connections users are bound on, bound as the service account again when returned, null if pooling is disabled
+    private final LdapConnectionPool bindPool;
+    private final AuthenticationCache authenticationCache;
+    // rendered user search filters which found no or more than one user
+    private final Cache<String, Boolean> unknownUsers;
+    // moving average of search and bind, unknown users are delayed as long with fake login enabled
+    private volatile long loginNanos;
+    private final SingleFlight<CoalescingKey, LdapUser> inFlight;
+    private final byte[] coalescingSecret;
+    private final LdapBackendConfig config;
+    // polls while this backend is referenced, null if disabled
+    private final LdapChangePoller changePoller;
     
     public LDAPAuthenticationBackend(final Settings settings, final Path configPath) {
         this.settings = settings;
         this.configPath = configPath;
+        this.config = LdapBackendConfig.forSettings(settings);
+        this.connectionFactory = new LDAPConnectionFactory(settings, configPath);
+        this.connectionPool = LDAPAuthorizationBackend.createConnectionPool(this, "authc", settings, configPath, connectionFactory);
+        this.bindPool = createBindPool(this, settings, connectionFactory);
+        this.authenticationCache = settings.getAsBoolean(ConfigConstants.LDAP_AUTHC_CACHE_ENABLED, false) ? new AuthenticationCache(settings) : null;
+        this.unknownUsers = createNegativeCache(settings);
+
+        if (settings.getAsBoolean(ConfigConstants.LDAP_AUTHC_COALESCING_ENABLED, false)) {
+            this.inFlight = new SingleFlight<CoalescingKey, LdapUser>(
+                    settings.getAsLong(ConfigConstants.LDAP_AUTHC_COALESCING_MAX_WAIT, ConfigConstants.LDAP_AUTHC_COALESCING_MAX_WAIT_DEFAULT));
+            this.coalescingSecret = new byte[32];
+            new SecureRandom().nextBytes(coalescingSecret);
+        } else {
+            this.inFlight = null;
+            this.coalescingSecret = null;
+        }
+
+        if (authenticationCache != null || unknownUsers != null) {
+            LdapChangeListener.start(this, "authc", settings, connectionFactory, Collections.singletonList(config.userBase), config.userSearchAttributes,
+                    LDAPAuthenticationBackend::entryChanged, LDAPAuthenticationBackend::invalidateAuthenticationCache);
+            this.changePoller = LdapChangePoller.start("authc", settings, connectionFactory, Collections.singletonList(config.userBase),
+                    config.userSearchAttributes, this::entryChanged, this::invalidateAuthenticationCache);
+        } else {
+            this.changePoller = null;
+        }
+    }
+
+    /**
+     * Users are never bound on the (possibly shared) service account pool, a bound user would be handed out to the next
+     * borrower. This pool has the same size limits, but its connections are only used for user binds.
+     */
+    private static LdapConnectionPool createBindPool(final Object owner, final Settings settings, final LDAPConnectionFactory connectionFactory) {
+
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_POOL_ENABLED, false)) {
+            return null;
+        }
+
+        return new LdapConnectionPool("authc-bind", settings, new LdapConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection create() throws Exception {
+                return connectionFactory.getConnection();
+            }
+        }, new LdapConnectionPool.ConnectionReset() {
+            @Override
+            public void reset(final Connection connection) throws Exception {
+                connectionFactory.bind(connection, null);
+            }
+        }, owner);
+    }
+
+    private static Cache<String, Boolean> createNegativeCache(final Settings settings) {
+
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_ENABLED, false)) {
+            return null;
+        }
+
+        return CacheBuilder.<String, Boolean>builder()
+                .setExpireAfterWrite(TimeValue.timeValueMillis(settings.getAsLong(ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_TTL,
+                        ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_TTL_DEFAULT)))
+                .setMaximumWeight(settings.getAsLong(ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_MAX_SIZE,
+                        ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_MAX_SIZE_DEFAULT))
+                .build();
     }
-    
 
     @Override
     public User authenticate(final AuthCredentials credentials) throws ElasticsearchSecurityException {
 
+        if (inFlight == null) {
+            return authenticate0(credentials);
+        }
+
+        final CoalescingKey key;
+        final byte[] password = credentials.getPassword();
+
+        try {
+            key = new CoalescingKey(credentials.getUsername(), digest(password));
+        } finally {
+            Arrays.fill(password, (byte) '\0');
+        }
+
+        try {
+            // every caller gets its own user object, the roles are added to it later
+            return inFlight.execute(key, () -> authenticate0(credentials),
+                    first -> new LdapUser(first.getName(), first.getOriginalUsername(), first.getUserEntry(), credentials, first.getUserEntryTimestamp(),
+                            first.getUserEntryAttributes(), first.getUserEntryDirectory()));
+        } catch (final ElasticsearchSecurityException e) {
+            throw e;
+        } catch (final RuntimeException e) {
+            throw new ElasticsearchSecurityException(e.toString(), e);
+        }
+    }
+
+    private LdapUser authenticate0(final AuthCredentials credentials) throws ElasticsearchSecurityException {
+
         Connection ldapConnection = null;
         final String user = Utils.escapeStringRfc2254(credentials.getUsername());
         byte[] password = credentials.getPassword();
+        long loginStart = 0;
 
         try {
 
-            ldapConnection = LDAPAuthorizationBackend.getConnection(settings, configPath);
+            if (authenticationCache != null) {
+                final AuthenticationCache.Authentication cached = authenticationCache.get(credentials.getUsername(), password);
+
+                if (cached != null) {
+                    if(log.isDebugEnabled()) {
+                        log.debug("Authenticated username {} from cache", cached.getName());
+                    }
+
+                    return new LdapUser(cached.getName(), user, cached.getEntry(), credentials, cached.getEntryTimestamp(),
+                            config.authcUserAttributes, config.userDirectory);
+                }
+            }
+
+            if (config.userDnTemplate != null) {
+                final String dn = config.userDnTemplate.render(0, Rdn.escapeValue(credentials.getUsername()));
+                ldapConnection = bindWithDnTemplate(dn, password);
+                final LdapEntry entry = readUserEntry(ldapConnection, dn);
+
+                if (entry == null) {
+                    // the dn alone is not cached, authz reads the entry again with the service account
+                    return newUser(credentials, user, password, new LdapEntry(dn), 0L, false);
+                }
+
+                return newUser(credentials, user, password, entry, System.currentTimeMillis(), true);
+            }
+
+            final String unknownUserKey = unknownUserKey(credentials.getUsername());
 
-            LdapEntry entry = exists(user, ldapConnection, settings);
+            if (unknownUsers != null && unknownUsers.get(unknownUserKey) != null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("No user {} found (negative cache)", user);
+                }
+                if (config.fakeLoginEnabled) {
+                    delayLikeLogin();
+                }
+                throw new ElasticsearchSecurityException("No user " + user + " found");
+            }
+
+            loginStart = System.nanoTime();
+            ldapConnection = LDAPAuthorizationBackend.getConnection(connectionPool, connectionFactory);
+
+            LdapEntry entry = exists(credentials.getUsername(), ldapConnection, config.userBase, config.userSearch, config.authcUserAttributes);
+            boolean fakeLogin = false;
+
+            if (entry == null && unknownUsers != null) {
+                unknownUsers.put(unknownUserKey, Boolean.TRUE);
+            }
 
             //fake a user that no exists
             //makes guessing if a user exists or not harder when looking on the authentication delay time
-            if(entry == null && settings.getAsBoolean(ConfigConstants.LDAP_FAKE_LOGIN_ENABLED, false)) {                
-                String fakeLognDn = settings.get(ConfigConstants.LDAP_FAKE_LOGIN_DN, "CN=faketomakebindfail,DC="+UUID.randomUUID().toString());
-                entry = new LdapEntry(fakeLognDn);
-                password = settings.get(ConfigConstants.LDAP_FAKE_LOGIN_PASSWORD, "fakeLoginPwd123").getBytes(StandardCharsets.UTF_8);
+            if(entry == null && config.fakeLoginEnabled) {
+                entry = new LdapEntry(config.fakeLoginDn);
+                password = config.fakeLoginPassword.getBytes(StandardCharsets.UTF_8);
+                fakeLogin = true;
             } else if(entry == null) {
                 throw new ElasticsearchSecurityException("No user " + user + " found");
             }
@@ -95,37 +269,34 @@ public class LDAPAuthenticationBackend implements AuthenticationBackend {
             }
 
             final BindRequest br = new BindRequest(dn, new Credential(password));
-            final SecurityManager sm = System.getSecurityManager();
-
-            if (sm != null) {
-                sm.checkPermission(new SpecialPermission());
-            }
-            
-            final Connection _con = ldapConnection;
-            
-            try {
-                AccessController.doPrivileged(new PrivilegedExceptionAction<Response<Void>>() {
-                    @Override
-                    public Response<Void> run() throws LdapException {
-                        return _con.reopen(br);
-                    }
-                });
-            } catch (PrivilegedActionException e) {
-                throw e.getException();
-            }
 
-            final String usernameAttribute = settings.get(ConfigConstants.LDAP_AUTHC_USERNAME_ATTRIBUTE, null);
-            String username = dn;
-
-            if (usernameAttribute != null && entry.getAttribute(usernameAttribute) != null) {
-                username = entry.getAttribute(usernameAttribute).getStringValue();
+            if (bindPool != null) {
+                // return the service account connection untouched and bind the user on a connection of the bind pool
+                Utils.unbindAndCloseSilently(ldapConnection);
+                ldapConnection = null;
+                ldapConnection = bindUser(br);
+            } else {
+                final SecurityManager sm = System.getSecurityManager();
+
+                if (sm != null) {
+                    sm.checkPermission(new SpecialPermission());
+                }
+
+                final Connection _con = ldapConnection;
+
+                try {
+                    AccessController.doPrivileged(new PrivilegedExceptionAction<Response<Void>>() {
+                        @Override
+                        public Response<Void> run() throws LdapException {
+                            return _con.reopen(br);
+                        }
+                    });
+                } catch (PrivilegedActionException e) {
+                    throw e.getException();
+                }
             }
 
-            if(log.isDebugEnabled()) {
-                log.debug("Authenticated username {}", username);
-            }
-
-            return new LdapUser(username, user, entry, credentials);
+            return newUser(credentials, user, password, entry, System.currentTimeMillis(), !fakeLogin);
 
         } catch (final Exception e) {
             if(log.isDebugEnabled()) {
@@ -136,8 +307,236 @@ public class LDAPAuthenticationBackend implements AuthenticationBackend {
             Arrays.fill(password, (byte) '\0');
             password = null;
             Utils.unbindAndCloseSilently(ldapConnection);
+
+            if (loginStart != 0) {
+                final long nanos = System.nanoTime() - loginStart;
+                final long average = loginNanos;
+                // racy on purpose, lost updates do not matter for an average
+                loginNanos = average == 0 ? nanos : average + (nanos - average) / 8;
+            }
+        }
+
+    }
+
+    /**
+     * Wait about as long as a search and bind takes, so a cached unknown user can not be told apart by the response time
+     */
+    private void delayLikeLogin() {
+
+        final long average = loginNanos;
+
+        if (average <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(average / 4 * 3 + ThreadLocalRandom.current().nextLong(average / 2 + 1));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Keyed hash of the password, the key is random and never leaves this backend
+     */
+    private byte[] digest(final byte[] password) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(coalescingSecret, "HmacSHA256"));
+            return mac.doFinal(password);
+        } catch (final GeneralSecurityException e) {
+            throw new ElasticsearchSecurityException("Unable to hash password", e);
+        }
+    }
+
+    /**
+     * @param entryTimestamp when the entry was read, 0 if it is incomplete
+     */
+    private LdapUser newUser(final AuthCredentials credentials, final String user, final byte[] password, final LdapEntry entry,
+            final long entryTimestamp, final boolean cacheable) {
+
+        final String usernameAttribute = config.usernameAttribute;
+        String username = entry.getDn();
+
+        if (usernameAttribute != null && entry.getAttribute(usernameAttribute) != null) {
+            username = entry.getAttribute(usernameAttribute).getStringValue();
         }
 
+        if(log.isDebugEnabled()) {
+            log.debug("Authenticated username {}", username);
+        }
+
+        if (authenticationCache != null && cacheable) {
+            authenticationCache.put(credentials.getUsername(), password, username, entry);
+        }
+
+        return new LdapUser(username, user, entry, credentials, entryTimestamp, config.authcUserAttributes, config.userDirectory);
+    }
+
+    /**
+     * Bind as {@code dn} on a new connection, the user is not searched and no service account is involved
+     */
+    private Connection bindWithDnTemplate(final String dn, final byte[] password) throws Exception {
+
+        if (password == null || password.length == 0) {
+            // a simple bind with a dn but without a password is an unauthenticated bind (RFC 4513 5.1.2), it always succeeds
+            throw new ElasticsearchSecurityException("Empty password for " + dn);
+        }
+
+        if(log.isTraceEnabled()) {
+            log.trace("Try to authenticate dn {} without user search", dn);
+        }
+
+        return bindUser(new BindRequest(dn, new Credential(password)));
+    }
+
+    /**
+     * Bind a user on a connection of the bind pool, or on a new connection if pooling is disabled. Closing the connection
+     * binds it as the service account again before it is returned to the pool.
+     */
+    private Connection bindUser(final BindRequest br) throws Exception {
+
+        if (bindPool == null) {
+            return connectionFactory.getConnection(br);
+        }
+
+        final Connection connection = bindPool.borrow();
+
+        try {
+            connectionFactory.bind(connection, br);
+            return connection;
+        } catch (final Exception e) {
+            Utils.unbindAndCloseSilently(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Read the entry of a user bound by {@link #bindWithDnTemplate(String, byte[])} with the identity of the user.
+     * If no attributes are needed the entry only contains the dn.
+     *
+     * @return the entry or null if the user may not read its own entry
+     */
+    private LdapEntry readUserEntry(final Connection userConnection, final String dn) throws LdapException {
+
+        if (Arrays.equals(ReturnAttributes.NONE.value(), config.authcUserAttributes)) {
+            return new LdapEntry(dn);
+        }
+
+        final LdapEntry entry = LdapHelper.lookup(userConnection, dn, config.authcUserAttributes);
+
+        if (entry == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to read the entry of {}", dn);
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Remove the cached authentication of this user (as given in the credentials), if any
+     */
+    public void invalidateAuthenticationCache(final String username) {
+        if (authenticationCache != null) {
+            authenticationCache.invalidate(username);
+        }
+        if (unknownUsers != null) {
+            invalidateUnknownUser(username);
+        }
+    }
+
+    private void invalidateUnknownUser(final String username) {
+        unknownUsers.invalidate(unknownUserKey(username));
+    }
+
+    /**
+     * The negative cache is keyed by the user search filter of the raw (not yet escaped) username
+     */
+    private String unknownUserKey(final String username) {
+        return config.userSearch.render(ESCAPE_ZERO, username);
+    }
+
+    /**
+     * Remove everything cached about a changed user entry. A user is no longer unknown if the entry has a matching
+     * value of an attribute of the user search, e.g. of uid for (uid={0}).
+     */
+    void entryChanged(final LdapEntry entry) {
+
+        if (authenticationCache != null) {
+            try {
+                authenticationCache.invalidateEntry(new LdapName(entry.getDn()));
+            } catch (final InvalidNameException e) {
+                authenticationCache.invalidateAll();
+            }
+        }
+
+        if (unknownUsers != null) {
+            if (config.userSearchAttributes.isEmpty()) {
+                unknownUsers.invalidateAll();
+                return;
+            }
+
+            for (final String attributeName: config.userSearchAttributes) {
+                final LdapAttribute attribute = entry.getAttribute(attributeName);
+
+                if (attribute != null) {
+                    for (final String username: attribute.getStringValues()) {
+                        invalidateUnknownUser(username);
+                    }
+                }
+            }
+        }
+    }
+
+    public void invalidateAuthenticationCache() {
+        if (authenticationCache != null) {
+            authenticationCache.invalidateAll();
+        }
+        if (unknownUsers != null) {
+            unknownUsers.invalidateAll();
+        }
+    }
+
+    /**
+     * @return hit, miss and eviction counters of the negative cache (unknown users) or null if it is not enabled
+     */
+    public Cache.CacheStats getNegativeCacheStats() {
+        return unknownUsers == null ? null : unknownUsers.stats();
+    }
+
+    /**
+     * @return hit, miss and eviction counters of the authentication cache or null if it is not enabled
+     */
+    public Cache.CacheStats getAuthenticationCacheStats() {
+        return authenticationCache == null ? null : authenticationCache.stats();
+    }
+
+    private static final class CoalescingKey {
+        private final String username;
+        private final byte[] digest;
+
+        private CoalescingKey(final String username, final byte[] digest) {
+            this.username = username;
+            this.digest = digest;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * username.hashCode() + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CoalescingKey)) {
+                return false;
+            }
+            final CoalescingKey other = (CoalescingKey) obj;
+            return username.equals(other.username) && Arrays.equals(digest, other.digest);
+        }
     }
 
     @Override
@@ -154,9 +553,23 @@ public class LDAPAuthenticationBackend implements AuthenticationBackend {
             userName = ((LdapUser) user).getUserEntry().getDn(); 
         }
 
+        final String unknownUserKey = unknownUserKey(userName);
+
+        if (unknownUsers != null && unknownUsers.get(unknownUserKey) != null) {
+            return false;
+        }
+
         try {
-            ldapConnection = LDAPAuthorizationBackend.getConnection(settings, configPath);
-            return exists(userName, ldapConnection, settings) != null; 
+            ldapConnection = LDAPAuthorizationBackend.getConnection(connectionPool, connectionFactory);
+
+            if (exists(userName, ldapConnection, config.userBase, config.userSearch, ReturnAttributes.NONE.value()) == null) {
+                if (unknownUsers != null) {
+                    unknownUsers.put(unknownUserKey, Boolean.TRUE);
+                }
+                return false;
+            }
+
+            return true;
         } catch (final Exception e) {
             log.warn("User {} does not exist due to "+e, userName);
             if(log.isDebugEnabled()) {
@@ -168,21 +581,149 @@ public class LDAPAuthenticationBackend implements AuthenticationBackend {
         }
     }
     
-    static LdapEntry exists(final String user, Connection ldapConnection, Settings settings) throws Exception {
-        final String username = Utils.escapeStringRfc2254(user);
+    /**
+     * Look up many users at once over one connection, like {@link #exists(User)} for each of them. With a simple
+     * {@code usersearch} like {@code (uid={0})} the names are searched {@code exists_batch_size} at a time with an OR filter
+     * and the entries are attributed back to the names by the value of that attribute (compared case insensitive).
+     *
+     * @return the entry of every name, null if there is no or more than one user with this name
+     */
+    public Map<String, LdapEntry> findUsers(final Collection<String> userNames) throws ElasticsearchSecurityException {
+
+        final Map<String, LdapEntry> result = new HashMap<String, LdapEntry>(userNames.size());
+        final List<String> pending = new ArrayList<String>(userNames.size());
+
+        for (final String userName: new LinkedHashSet<String>(userNames)) {
+            result.put(userName, null);
+
+            if (unknownUsers == null || unknownUsers.get(unknownUserKey(userName)) == null) {
+                pending.add(userName);
+            }
+        }
 
-        final List<LdapEntry> result = LdapHelper.search(ldapConnection,
-                settings.get(ConfigConstants.LDAP_AUTHC_USERBASE, DEFAULT_USERBASE),
-                settings.get(ConfigConstants.LDAP_AUTHC_USERSEARCH, DEFAULT_USERSEARCH_PATTERN).replace(ZERO_PLACEHOLDER, username),
-                SearchScope.SUBTREE);
+        if (pending.isEmpty()) {
+            return result;
+        }
+
+        Connection ldapConnection = null;
+
+        try {
+            ldapConnection = LDAPAuthorizationBackend.getConnection(connectionPool, connectionFactory);
+
+            final int batchSize = Math.max(1, config.existsBatchSize);
+
+            for (int i = 0; i < pending.size(); i += batchSize) {
+                findUsers(pending.subList(i, Math.min(pending.size(), i + batchSize)), ldapConnection, result);
+            }
+
+            return result;
+        } catch (final Exception e) {
+            if(log.isDebugEnabled()) {
+                log.debug("Unable to find users due to ", e);
+            }
+            throw new ElasticsearchSecurityException(e.toString(), e);
+        } finally {
+            Utils.unbindAndCloseSilently(ldapConnection);
+        }
+    }
+
+    private void findUsers(final List<String> userNames, final Connection ldapConnection, final Map<String, LdapEntry> result) throws Exception {
+
+        if (userNames.size() == 1 || config.userSearchAttributes.isEmpty()) {
+            // a single name or no attribute to attribute the entries to their names by
+            for (final String userName: userNames) {
+                final LdapEntry entry = exists(userName, ldapConnection, config.userBase, config.userSearch, config.authcUserAttributes);
+                result.put(userName, entry);
+
+                if (entry == null && unknownUsers != null) {
+                    unknownUsers.put(unknownUserKey(userName), Boolean.TRUE);
+                }
+            }
+            return;
+        }
+
+        final Map<String, List<String>> namesByValue = new HashMap<String, List<String>>(userNames.size());
+        final StringBuilder filter = new StringBuilder(userNames.size() * 32).append("(|");
+
+        for (final String userName: userNames) {
+            namesByValue.computeIfAbsent(userName.toLowerCase(Locale.ROOT), k -> new ArrayList<String>(1)).add(userName);
+
+            final int start = filter.length();
+
+            config.userSearch.appendTo(filter, ESCAPE_ZERO, userName);
+
+            if (filter.length() == start || filter.charAt(start) != '(') {
+                filter.insert(start, '(').append(')');
+            }
+        }
+
+        filter.append(')');
+
+        final Map<String, LdapEntry> found = new HashMap<String, LdapEntry>(userNames.size());
+        final Set<String> ambiguous = new HashSet<String>();
+
+        final int count = LdapHelper.search(ldapConnection, config.userBase, filter.toString(), SearchScope.SUBTREE,
+                LdapHelper.SearchLimits.NONE, entry -> {
+
+            final Set<String> matched = new HashSet<String>();
+
+            for (final String attribute: config.userSearchAttributes) {
+                final LdapAttribute values = entry.getAttribute(attribute);
+
+                if (values == null) {
+                    continue;
+                }
+
+                for (final String value: values.getStringValues()) {
+                    final List<String> names = namesByValue.get(value.toLowerCase(Locale.ROOT));
+
+                    if (names != null) {
+                        matched.addAll(names);
+                    }
+                }
+            }
+
+            for (final String userName: matched) {
+                if (found.put(userName, entry) != null) {
+                    ambiguous.add(userName);
+                }
+            }
+        }, config.batchedUserSearchAttributes);
+
+        if (log.isTraceEnabled()) {
+            log.trace("{} entries found for {} user names", count, userNames.size());
+        }
+
+        for (final String userName: userNames) {
+            final LdapEntry entry = ambiguous.contains(userName) ? null : found.get(userName);
+            result.put(userName, entry);
+
+            if (entry == null && unknownUsers != null) {
+                unknownUsers.put(unknownUserKey(userName), Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * @param userSearch the compiled {@code usersearch}, {0} is replaced by the escaped {@code user}
+     */
+    static LdapEntry exists(final String user, Connection ldapConnection, final String userBase, final FilterTemplate userSearch,
+            final String... returnAttributes) throws Exception {
+
+        final List<LdapEntry> result = LdapHelper.search(ldapConnection, userBase, userSearch.render(ESCAPE_ZERO, user),
+                SearchScope.SUBTREE, returnAttributes);
 
         if (result == null || result.isEmpty()) {
-            log.debug("No user " + username + " found");
+            if (log.isDebugEnabled()) {
+                log.debug("No user {} found", Utils.escapeStringRfc2254(user));
+            }
             return null;
         }
 
         if (result.size() > 1) {
-            log.debug("More than one user for '" + username + "' found");
+            if (log.isDebugEnabled()) {
+                log.debug("More than one user for '{}' found", Utils.escapeStringRfc2254(user));
+            }
             return null;
         }
 
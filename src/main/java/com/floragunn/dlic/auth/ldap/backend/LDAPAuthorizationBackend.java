@@ -14,28 +14,27 @@
 
 package com.floragunn.dlic.auth.ldap.backend;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.nio.file.Path;
+import java.security.AccessControlContext;
 import java.security.AccessController;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
+import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
@@ -44,41 +43,32 @@ import javax.naming.ldap.Rdn;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchSecurityException;
-import org.elasticsearch.SpecialPermission;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.settings.Settings;
-import org.ldaptive.BindRequest;
+import org.elasticsearch.common.unit.TimeValue;
 import org.ldaptive.Connection;
-import org.ldaptive.ConnectionConfig;
-import org.ldaptive.Credential;
-import org.ldaptive.DefaultConnectionFactory;
 import org.ldaptive.LdapAttribute;
 import org.ldaptive.LdapEntry;
 import org.ldaptive.LdapException;
+import org.ldaptive.ReturnAttributes;
 import org.ldaptive.SearchScope;
-import org.ldaptive.sasl.ExternalConfig;
-import org.ldaptive.ssl.AllowAnyHostnameVerifier;
-import org.ldaptive.ssl.CredentialConfig;
-import org.ldaptive.ssl.CredentialConfigFactory;
-import org.ldaptive.ssl.HostnameVerifyingTrustManager;
-import org.ldaptive.ssl.SslConfig;
 
 import com.floragunn.dlic.auth.ldap.LdapUser;
+import com.floragunn.dlic.auth.ldap.util.BackgroundTasks;
 import com.floragunn.dlic.auth.ldap.util.ConfigConstants;
+import com.floragunn.dlic.auth.ldap.util.GroupParentCache;
+import com.floragunn.dlic.auth.ldap.util.LdapConnectionPool;
 import com.floragunn.dlic.auth.ldap.util.LdapHelper;
 import com.floragunn.dlic.auth.ldap.util.Utils;
 import com.floragunn.searchguard.auth.AuthorizationBackend;
-import com.floragunn.searchguard.ssl.util.SSLConfigConstants;
-import com.floragunn.searchguard.support.PemKeyReader;
-import com.floragunn.searchguard.support.WildcardMatcher;
 import com.floragunn.searchguard.user.AuthCredentials;
 import com.floragunn.searchguard.user.User;
 
 public class LDAPAuthorizationBackend implements AuthorizationBackend {
 
-    private static final List<String> DEFAULT_TLS_PROTOCOLS = Arrays.asList(new String[] { "TLSv1.2", "TLSv1.1"});
-    static final String ONE_PLACEHOLDER = "{1}";
-    static final String TWO_PLACEHOLDER = "{2}";
+    private static final int ESCAPE_ZERO_ONE = 3; //escape mask of FilterTemplate, {0} and {1}
     static final String DEFAULT_ROLEBASE = "";
     static final String DEFAULT_ROLESEARCH = "(member={0})";
     static final String DEFAULT_ROLENAME = "name";
@@ -89,240 +79,149 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
     }
 
     protected static final Logger log = LogManager.getLogger(LDAPAuthorizationBackend.class);
+    // settings which change how connections are opened and bound (with their sub keys), backends share a pool only if all of them are equal
+    private static final List<String> CONNECTION_SETTINGS = Arrays.asList(ConfigConstants.LDAP_HOSTS, ConfigConstants.LDAP_BIND_DN,
+            ConfigConstants.LDAP_PASSWORD, ConfigConstants.LDAP_CONNECT_TIMEOUT, ConfigConstants.LDAP_RESPONSE_TIMEOUT, ConfigConstants.LDAP_CONNECT_MODE,
+            "race", ConfigConstants.LDAP_HOST_SELECTION, "health", "pool", ConfigConstants.LDAPS_VERIFY_HOSTNAMES, ConfigConstants.LDAPS_ENABLE_SSL,
+            ConfigConstants.LDAPS_ENABLE_START_TLS, ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH, ConfigConstants.LDAPS_SSL_CONFIG_RELOAD_INTERVAL,
+            ConfigConstants.LDAPS_JKS_CERT_ALIAS, ConfigConstants.LDAPS_JKS_TRUST_ALIAS, ConfigConstants.LDAPS_PEMKEY_FILEPATH,
+            ConfigConstants.LDAPS_PEMKEY_CONTENT, ConfigConstants.LDAPS_PEMKEY_PASSWORD, ConfigConstants.LDAPS_PEMCERT_FILEPATH,
+            ConfigConstants.LDAPS_PEMCERT_CONTENT, ConfigConstants.LDAPS_PEMTRUSTEDCAS_FILEPATH, ConfigConstants.LDAPS_PEMTRUSTEDCAS_CONTENT,
+            ConfigConstants.LDAPS_ENABLED_SSL_CIPHERS, ConfigConstants.LDAPS_ENABLED_SSL_PROTOCOLS, "searchguard.ssl");
+    // pools close themselves once all their owners are gone
+    private static final Map<List<Object>, LdapConnectionPool> sharedPools = new HashMap<List<Object>, LdapConnectionPool>();
     private final Settings settings;
     private final Path configPath;
+    private final LDAPConnectionFactory connectionFactory;
+    private final LdapConnectionPool connectionPool;
+    // invalidations and the replacement by a refresh are synchronized on the cache, the cache itself can not compare and set
+    private final Cache<RoleCacheKey, CachedRoles> roleCache;
+    // age in ms after which cached roles are resolved again in the background, <= 0 if they are kept until they expire
+    private final long roleCacheRefreshAfter;
+    private final GroupParentCache groupParentCache;
+    private final ExecutorService nestedRoleExecutor;
+    private final LdapBackendConfig config;
+    // polls while this backend is referenced, null if disabled
+    private final LdapChangePoller changePoller;
 
     public LDAPAuthorizationBackend(final Settings settings, final Path configPath) {
         this.settings = settings;
         this.configPath = configPath;
-    }
-    
-    public static Connection getConnection(final Settings settings, final Path configPath) throws Exception {
-        
-        final SecurityManager sm = System.getSecurityManager();
-
-        if (sm != null) {
-            sm.checkPermission(new SpecialPermission());
-        }
-        
-        try {
-            return AccessController.doPrivileged(new PrivilegedExceptionAction<Connection>() {
-                @Override
-                public Connection run() throws Exception {
-                    return getConnection0(settings, configPath);
-                }
-            });
-        } catch (PrivilegedActionException e) {
-            throw e.getException();
+        this.config = LdapBackendConfig.forSettings(settings);
+        this.connectionFactory = new LDAPConnectionFactory(settings, configPath);
+        this.connectionPool = createConnectionPool(this, "authz", settings, configPath, connectionFactory);
+        this.roleCache = createRoleCache(settings);
+        this.roleCacheRefreshAfter = settings.getAsLong(ConfigConstants.LDAP_AUTHZ_CACHE_REFRESH_AFTER, ConfigConstants.LDAP_AUTHZ_CACHE_REFRESH_AFTER_DEFAULT);
+        this.groupParentCache = GroupParentCache.forSettings(settings);
+        this.nestedRoleExecutor = config.nestedRoleParallelism <= 1 ? null : BackgroundTasks.newBoundedWorkers("nested-roles", config.nestedRoleThreads);
+
+        if (roleCache != null || groupParentCache != null) {
+            LdapChangeListener.start(this, "authz", settings, connectionFactory, Arrays.asList(config.userBase, config.roleBase), config.roleSearchMemberAttributes,
+                    LDAPAuthorizationBackend::entryChanged, LDAPAuthorizationBackend::changesMissed);
+            this.changePoller = LdapChangePoller.start("authz", settings, connectionFactory, Arrays.asList(config.userBase, config.roleBase),
+                    config.roleSearchMemberAttributes, this::entryChanged, this::changesMissed);
+        } else {
+            this.changePoller = null;
         }
-
     }
 
-    private static Connection getConnection0(final Settings settings, final Path configPath) throws KeyStoreException, NoSuchAlgorithmException,
-    CertificateException, FileNotFoundException, IOException, LdapException {
-        final boolean enableSSL = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_SSL, false);
+    /**
+     * The role cache belongs to this backend instance and therefore to exactly one set of authz settings,
+     * the key only needs to contain what differs between the users
+     */
+    private static Cache<RoleCacheKey, CachedRoles> createRoleCache(final Settings settings) {
 
-        final List<String> ldapHosts = settings.getAsList(ConfigConstants.LDAP_HOSTS, Collections.singletonList("localhost"));
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_AUTHZ_CACHE_ENABLED, false)) {
+            return null;
+        }
 
-        Connection connection = null;
+        final long ttl = settings.getAsLong(ConfigConstants.LDAP_AUTHZ_CACHE_TTL, ConfigConstants.LDAP_AUTHZ_CACHE_TTL_DEFAULT);
+        final long maxSize = settings.getAsLong(ConfigConstants.LDAP_AUTHZ_CACHE_MAX_SIZE, ConfigConstants.LDAP_AUTHZ_CACHE_MAX_SIZE_DEFAULT);
 
-        for (String ldapHost: ldapHosts) {
-            
-            if(log.isTraceEnabled()) {
-                log.trace("Connect to {}", ldapHost);
-            }
+        if (log.isDebugEnabled()) {
+            log.debug("Role cache: ttl {} ms, max size {}", ttl, maxSize);
+        }
 
-            try {
+        return CacheBuilder.<RoleCacheKey, CachedRoles>builder()
+                .setExpireAfterWrite(TimeValue.timeValueMillis(ttl))
+                .setMaximumWeight(maxSize)
+                .build();
+    }
 
-                final String[] split = ldapHost.split(":");
+    /**
+     * With {@code pool.shared} backends with the same connection settings use the same pool. A login then searches the user
+     * and resolves its roles on the same (service account) connection: authc returns it to the pool and authz borrows it again.
+     * The pool is closed after {@code owner} (and every other backend using it) was garbage collected.
+     */
+    static LdapConnectionPool createConnectionPool(final Object owner, final String name, final Settings settings, final Path configPath,
+            final LDAPConnectionFactory connectionFactory) {
 
-                int port = 389;
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_POOL_ENABLED, false)) {
+            return null;
+        }
 
-                if (split.length > 1) {
-                    port = Integer.parseInt(split[1]);
-                } else {
-                    port = enableSSL ? 636 : 389;
-                }
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_POOL_SHARED, false)) {
+            return createConnectionPool(owner, name, settings, connectionFactory);
+        }
 
-                final ConnectionConfig config = new ConnectionConfig();
-                config.setLdapUrl("ldap" + (enableSSL ? "s" : "") + "://" + split[0] + ":" + port);
-                
-                if(log.isTraceEnabled()) {
-                    log.trace("Connect to {}", config.getLdapUrl());
-                }
-                
-                final Map<String, Object> props = configureSSL(config, settings, configPath);
+        final List<Object> key = Arrays.asList(String.valueOf(configPath), settings.filter(LDAPAuthorizationBackend::isConnectionSetting));
 
-                DefaultConnectionFactory connFactory = new DefaultConnectionFactory(config);
-                connFactory.getProvider().getProviderConfig().setProperties(props);
-                connection = connFactory.getConnection();
-                
-                final String bindDn = settings.get(ConfigConstants.LDAP_BIND_DN, null);
-                final String password = settings.get(ConfigConstants.LDAP_PASSWORD, null);
+        synchronized (sharedPools) {
+            sharedPools.values().removeIf(LdapConnectionPool::isClosed);
 
-                if (log.isDebugEnabled()) {
-                    log.debug("bindDn {}, password {}", bindDn, password != null && password.length() > 0?"****":"<not set>");
-                }
-                
-                if (bindDn != null && (password == null || password.length() == 0)) {
-                    log.error("No password given for bind_dn {}. Will try to authenticate anonymously to ldap", bindDn);
-                }
-                
-                final boolean enableClientAuth = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH, ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH_DEFAULT);
-
-                if(log.isDebugEnabled()) {
-                    if(enableClientAuth && bindDn == null) {
-                        log.debug("Will perform External SASL bind because client cert authentication is enabled");
-                    } else if(bindDn == null) {
-                        log.debug("Will perform anonymous bind because to bind dn is given");
-                    } else if(enableClientAuth && bindDn != null) {
-                        log.debug("Will perform simple bind with bind dn because to bind dn is given and overrides client cert authentication");
-                    } else if(!enableClientAuth && bindDn != null) {
-                        log.debug("Will perform simple bind with bind dn");
-                    }
-                }
-                
-                BindRequest br = enableClientAuth?new BindRequest(new ExternalConfig()):new BindRequest();
-                
-                if (bindDn != null && password != null && password.length() > 0) {
-                    br = new BindRequest(bindDn, new Credential(password));
-                }
-                
-                connection.open(br);
+            LdapConnectionPool pool = sharedPools.get(key);
 
-                if (connection != null && connection.isOpen()) {
-                    break;
-                }
-            } catch (final Exception e) {
-                log.warn("Unable to connect to ldapserver {} due to {}. Try next.", ldapHost, e.toString());
-                if(log.isDebugEnabled()) {
-                    log.debug("Unable to connect to ldapserver due to ",e);
-                }
-                Utils.unbindAndCloseSilently(connection);
-                continue;
+            if (pool == null || !pool.acquire(owner)) {
+                pool = createConnectionPool(owner, "shared", settings, connectionFactory);
+                sharedPools.put(key, pool);
+            } else if (log.isDebugEnabled()) {
+                log.debug("Use shared pool for {}", name);
             }
-        }
 
-        if (connection == null || !connection.isOpen()) {
-            throw new LdapException("Unable to connect to any of those ldap servers " + ldapHosts);
+            return pool;
         }
-
-        return connection;
     }
-    
 
+    private static boolean isConnectionSetting(final String key) {
 
-
-    private static Map<String, Object> configureSSL(final ConnectionConfig config, final Settings settings, final Path configPath) throws Exception {
-        
-        final Map<String, Object> props = new HashMap<String, Object>();
-        final boolean enableSSL = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_SSL, false);
-        final boolean enableStartTLS = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_START_TLS, false);
-
-        if (enableSSL || enableStartTLS) {
-            
-            final boolean enableClientAuth = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH, ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH_DEFAULT);
-            final boolean verifyHostnames = settings.getAsBoolean(ConfigConstants.LDAPS_VERIFY_HOSTNAMES, ConfigConstants.LDAPS_VERIFY_HOSTNAMES_DEFAULT);
-            
-            if(enableStartTLS && !verifyHostnames) {
-                props.put("jndi.starttls.allowAnyHostname", "true");
+        for (final String setting: CONNECTION_SETTINGS) {
+            if (key.equals(setting) || key.startsWith(setting + ".")) {
+                return true;
             }
-            
-            final boolean pem = settings.get(ConfigConstants.LDAPS_PEMTRUSTEDCAS_FILEPATH, null) != null
-                    || settings.get(ConfigConstants.LDAPS_PEMTRUSTEDCAS_CONTENT, null) != null;
-            
-            final SslConfig sslConfig = new SslConfig();
-            CredentialConfig cc;
-            
-            if(pem) {
-                X509Certificate[] trustCertificates = PemKeyReader.loadCertificatesFromStream(PemKeyReader.resolveStream(ConfigConstants.LDAPS_PEMTRUSTEDCAS_CONTENT, settings));
-                
-                if(trustCertificates == null) {
-                    trustCertificates = PemKeyReader.loadCertificatesFromFile(PemKeyReader.resolve(ConfigConstants.LDAPS_PEMTRUSTEDCAS_FILEPATH, settings, configPath, true));
-                }
-                    //for client authentication
-                X509Certificate authenticationCertificate =  PemKeyReader.loadCertificateFromStream(PemKeyReader.resolveStream(ConfigConstants.LDAPS_PEMCERT_CONTENT, settings));
-                
-                if(authenticationCertificate == null) {
-                    authenticationCertificate = PemKeyReader.loadCertificateFromFile(PemKeyReader.resolve(ConfigConstants.LDAPS_PEMCERT_FILEPATH, settings, configPath, enableClientAuth));
-                }
-                
-                PrivateKey authenticationKey = PemKeyReader.loadKeyFromStream(settings.get(ConfigConstants.LDAPS_PEMKEY_PASSWORD), PemKeyReader.resolveStream(ConfigConstants.LDAPS_PEMKEY_CONTENT, settings));
-                
-                if(authenticationKey == null) {
-                    authenticationKey = PemKeyReader.loadKeyFromFile(settings.get(ConfigConstants.LDAPS_PEMKEY_PASSWORD), PemKeyReader.resolve(ConfigConstants.LDAPS_PEMKEY_FILEPATH, settings, configPath, enableClientAuth));    
-                }
+        }
 
-                cc = CredentialConfigFactory.createX509CredentialConfig(trustCertificates, authenticationCertificate, authenticationKey);
-                
-                if(log.isDebugEnabled()) {
-                    log.debug("Use PEM to secure communication with LDAP server (client auth is {})", authenticationKey!=null);
-                }
-                
-            } else {
-                final KeyStore trustStore = PemKeyReader.loadKeyStore(PemKeyReader.resolve(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_TRUSTSTORE_FILEPATH, settings, configPath, true)
-                        , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_TRUSTSTORE_PASSWORD, SSLConfigConstants.DEFAULT_STORE_PASSWORD)
-                        , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_TRUSTSTORE_TYPE));
-                
-                final List<String> trustStoreAliases = settings.getAsList(ConfigConstants.LDAPS_JKS_TRUST_ALIAS, null);
-                
-                //for client authentication
-                final KeyStore keyStore = PemKeyReader.loadKeyStore(PemKeyReader.resolve(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_FILEPATH, settings, configPath, enableClientAuth)
-                        , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_PASSWORD, SSLConfigConstants.DEFAULT_STORE_PASSWORD)
-                        , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_TYPE));
-                final String keyStorePassword = settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_PASSWORD, SSLConfigConstants.DEFAULT_STORE_PASSWORD);
-                
-                final String keyStoreAlias = settings.get(ConfigConstants.LDAPS_JKS_CERT_ALIAS, null);
-                final String[] keyStoreAliases = keyStoreAlias==null?null:new String[]{keyStoreAlias};
-                
-                if(enableClientAuth && keyStoreAliases == null) {
-                    throw new IllegalArgumentException(ConfigConstants.LDAPS_JKS_CERT_ALIAS+" not given");
-                }
-                
-                if(log.isDebugEnabled()) {
-                    log.debug("Use Trust-/Keystore to secure communication with LDAP server (client auth is {})", keyStore!=null);
-                    log.debug("trustStoreAliases: {}, keyStoreAlias: {}",  trustStoreAliases, keyStoreAlias);
-                }
-                
-                cc = CredentialConfigFactory.createKeyStoreCredentialConfig(trustStore, trustStoreAliases==null?null:trustStoreAliases.toArray(new String[0]), keyStore, keyStorePassword, keyStoreAliases);
+        return false;
+    }
 
+    private static LdapConnectionPool createConnectionPool(final Object owner, final String name, final Settings settings,
+            final LDAPConnectionFactory connectionFactory) {
+        return new LdapConnectionPool(name, settings, new LdapConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection create() throws Exception {
+                return connectionFactory.getConnection();
             }
-            
-            sslConfig.setCredentialConfig(cc);
-            
-            if(!verifyHostnames) {
-                sslConfig.setTrustManagers(new HostnameVerifyingTrustManager(new AllowAnyHostnameVerifier(), "dummy"));
-            }
-       
-            //https://github.com/floragunncom/search-guard/issues/227
-            final List<String> enabledCipherSuites = settings.getAsList(ConfigConstants.LDAPS_ENABLED_SSL_CIPHERS, Collections.emptyList());   
-            final List<String> enabledProtocols = settings.getAsList(ConfigConstants.LDAPS_ENABLED_SSL_PROTOCOLS, DEFAULT_TLS_PROTOCOLS);   
-            
+        }, owner);
+    }
 
-            if(enabledCipherSuites.size() > 0) {
-                sslConfig.setEnabledCipherSuites(enabledCipherSuites.toArray(new String[0]));
-                log.debug("enabled ssl cipher suites for ldaps {}", enabledCipherSuites);
-            }
-            
-            log.debug("enabled ssl/tls protocols for ldaps {}", enabledProtocols);
-            sslConfig.setEnabledProtocols(enabledProtocols.toArray(new String[0]));
-            config.setSslConfig(sslConfig);
+    /**
+     * Borrow a service account connection from the pool or, if pooling is disabled, open a new one.
+     * The connection is released with {@link Utils#unbindAndCloseSilently(Connection)} in both cases.
+     */
+    static Connection getConnection(final LdapConnectionPool connectionPool, final LDAPConnectionFactory connectionFactory) throws Exception {
+
+        if (connectionPool != null) {
+            return connectionPool.borrow();
         }
 
-        config.setUseSSL(enableSSL);
-        config.setUseStartTLS(enableStartTLS);
-        
-        final long connectTimeout = settings.getAsLong(ConfigConstants.LDAP_CONNECT_TIMEOUT, 5000L);
-        final long responseTimeout = settings.getAsLong(ConfigConstants.LDAP_RESPONSE_TIMEOUT, -1L);
-        
-        config.setConnectTimeout(connectTimeout); // 5 sec by default
-        config.setResponseTimeout(responseTimeout);
+        return connectionFactory.getConnection();
+    }
 
-        if(log.isDebugEnabled()) {
-            log.debug("Connect timeout: "+config.getConnectTimeout()+"/ResponseTimeout: "+config.getResponseTimeout());
-        }
-        return props;
-        
+    /**
+     * @deprecated sets up TLS and the connection configuration on every call, keep a {@link LDAPConnectionFactory} instead
+     */
+    @Deprecated
+    public static Connection getConnection(final Settings settings, final Path configPath) throws Exception {
+        return new LDAPConnectionFactory(settings, configPath).getConnection();
     }
 
     @Override
@@ -335,43 +234,225 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
         String authenticatedUser;
         String originalUserName;
         LdapEntry entry = null;
-        String dn = null;
         
         if(user instanceof LdapUser) {
-            entry = ((LdapUser) user).getUserEntry();
-            authenticatedUser = entry.getDn(); 
+            authenticatedUser = ((LdapUser) user).getDn();
             originalUserName = ((LdapUser) user).getOriginalUsername();
+            // the entry was read when the user authenticated, read it again if it lacks an attribute needed here,
+            // comes from another directory or is too old
+            entry = ((LdapUser) user).getUserEntry(config.userEntryMaxAge, config.userDirectory, config.authzUserAttributes);
         } else {
             authenticatedUser =  Utils.escapeStringRfc2254(user.getName());
             originalUserName = user.getName();
         }
-        
-        final boolean rolesearchEnabled = settings.getAsBoolean(ConfigConstants.LDAP_AUTHZ_ROLESEARCH_ENABLED, true);
 
-        
         if(log.isTraceEnabled()) {
             log.trace("user class: {}", user.getClass());
             log.trace("authenticatedUser: {}", authenticatedUser);
             log.trace("originalUserName: {}", originalUserName);
             log.trace("entry: {}", String.valueOf(entry));
-            log.trace("dn: {}", dn);
         }
 
-        final List<String> skipUsers = settings.getAsList(ConfigConstants.LDAP_AUTHZ_SKIP_USERS, Collections.emptyList());
-        if (skipUsers.size() > 0 && WildcardMatcher.matchAny(skipUsers, authenticatedUser)) {
+        if (config.skipUsers.matches(authenticatedUser)) {
             if (log.isDebugEnabled()) {
                 log.debug("Skipped search roles of user {}", authenticatedUser);
             }
             return;
         }
-       
+
+        final Set<String> roles;
+
+        if (roleCache == null) {
+            roles = resolveRoles(user.getName(), authenticatedUser, originalUserName, entry).names;
+        } else {
+            final LdapEntry userEntry = entry;
+            final RoleCacheKey key = new RoleCacheKey(authenticatedUser, originalUserName);
+            final CachedRoles cached;
+
+            try {
+                // concurrent misses for the same key wait for a single resolution
+                cached = roleCache.computeIfAbsent(key,
+                        k -> new CachedRoles(k, resolveRoles(user.getName(), authenticatedUser, originalUserName, userEntry)));
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof ElasticsearchSecurityException) {
+                    throw (ElasticsearchSecurityException) e.getCause();
+                }
+                throw new ElasticsearchSecurityException(e.getCause().toString(), e.getCause());
+            }
+
+            if (roleCacheRefreshAfter > 0 && System.currentTimeMillis() - cached.resolved > roleCacheRefreshAfter) {
+                refreshRoles(key, cached, user.getName());
+            }
+
+            roles = cached.roles.names;
+        }
+
+        user.addRoles(roles);
+
+        if(log.isTraceEnabled()) {
+            log.trace("returned user: {}", user);
+        }
+    }
+
+    /**
+     * Resolve the roles of a cached entry again in the background, the caller keeps using the stale roles until the new ones
+     * are cached. The user entry is read again so that changed memberships are seen. Only one refresh per entry runs at a time;
+     * if it fails the stale roles are served until the next refresh or until the entry expires after {@code authz_cache.ttl}.
+     */
+    private void refreshRoles(final RoleCacheKey key, final CachedRoles cached, final String userName) {
+
+        if (!cached.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Refresh cached roles of {}", key.user);
+        }
+
+        final AccessControlContext acc = AccessController.getContext();
+
+        BackgroundTasks.workers().execute(() -> AccessController.doPrivileged(new PrivilegedAction<Void>() {
+            @Override
+            public Void run() {
+                try {
+                    final CachedRoles refreshed = new CachedRoles(key, resolveRoles(userName, key.user, key.originalUserName, null));
+
+                    synchronized (roleCache) {
+                        // not if the entry was invalidated or replaced in the meantime
+                        if (roleCache.get(key) == cached) {
+                            roleCache.put(key, refreshed);
+                        }
+                    }
+                } catch (final Exception e) {
+                    cached.refreshing.set(false);
+                    log.warn("Unable to refresh the cached roles of {} due to {}", key.user, e.toString());
+                    if (log.isDebugEnabled()) {
+                        log.debug("Unable to refresh the cached roles due to ", e);
+                    }
+                }
+                return null;
+            }
+        }, acc));
+    }
+
+    /**
+     * Remove the cached roles of this user (the DN for users authenticated by ldap, the name otherwise)
+     */
+    public void invalidateRoleCache(final String user) {
+
+        if (roleCache == null) {
+            return;
+        }
+
+        final String escapedUser = Utils.escapeStringRfc2254(user);
+        final List<RoleCacheKey> keys = new ArrayList<RoleCacheKey>();
+
+        for (final RoleCacheKey key: roleCache.keys()) {
+            if (key.user.equals(user) || key.user.equals(escapedUser)) {
+                keys.add(key);
+            }
+        }
+
+        synchronized (roleCache) {
+            for (final RoleCacheKey key: keys) {
+                roleCache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Remove everything cached about a changed user or role entry: the roles of the user, of the members of the role and
+     * of all users which have the role, and the parents of the role and of its members.
+     */
+    void entryChanged(final LdapEntry entry) {
+
+        final Set<LdapName> changed = new HashSet<LdapName>();
+        final LdapName dn;
+
+        try {
+            dn = toLdapName(entry);
+        } catch (final LdapException e) {
+            log.warn("Ignore change of {} due to {}", entry.getDn(), e.toString());
+            return;
+        }
+
+        changed.add(dn);
+
+        for (final String memberAttribute: config.roleSearchMemberAttributes) {
+            final LdapAttribute members = entry.getAttribute(memberAttribute);
+
+            if (members != null) {
+                for (final String member: members.getStringValues()) {
+                    if (isValidDn(member)) {
+                        try {
+                            changed.add(new LdapName(member));
+                        } catch (final InvalidNameException e) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+        }
+
+        if (roleCache != null) {
+            final List<RoleCacheKey> keys = new ArrayList<RoleCacheKey>();
+
+            for (final CachedRoles cached: roleCache.values()) {
+                if (changed.contains(cached.roles.userDn) || !Collections.disjoint(changed, cached.roles.roleDns)) {
+                    keys.add(cached.key);
+                }
+            }
+
+            synchronized (roleCache) {
+                for (final RoleCacheKey key: keys) {
+                    roleCache.invalidate(key);
+                }
+            }
+        }
+
+        if (groupParentCache != null) {
+            for (final LdapName name: changed) {
+                groupParentCache.invalidate(name);
+            }
+            groupParentCache.invalidateChildren(dn);
+        }
+    }
+
+    void changesMissed() {
+        invalidateRoleCache();
+
+        if (groupParentCache != null) {
+            groupParentCache.invalidateAll();
+        }
+    }
+
+    public void invalidateRoleCache() {
+        if (roleCache != null) {
+            synchronized (roleCache) {
+                roleCache.invalidateAll();
+            }
+        }
+    }
+
+    /**
+     * @return hit, miss and eviction counters of the role cache or null if it is not enabled
+     */
+    public Cache.CacheStats getRoleCacheStats() {
+        return roleCache == null ? null : roleCache.stats();
+    }
+
+    private ResolvedRoles resolveRoles(final String userName, final String authenticatedUser, final String originalUserName, LdapEntry entry)
+            throws ElasticsearchSecurityException {
+
+        final Set<String> roleNames = new HashSet<String>();
+        String dn = entry == null ? null : entry.getDn();
         Connection connection = null;
 
         try {
 
             if(entry == null || dn == null) {
-            
-                connection = getConnection(settings, configPath);
+
+                connection = getConnection(connectionPool, connectionFactory);
                 
                 if (isValidDn(authenticatedUser)) {
                     // assume dn
@@ -379,14 +460,14 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
                         log.trace("{} is a valid DN", authenticatedUser);
                     }
                     
-                    entry = LdapHelper.lookup(connection, authenticatedUser);
+                    entry = LdapHelper.lookup(connection, authenticatedUser, config.authzUserAttributes);
     
                     if (entry == null) {
                         throw new ElasticsearchSecurityException("No user '" + authenticatedUser + "' found");
                     }
     
                 } else {
-                    entry = LDAPAuthenticationBackend.exists(user.getName(), connection, settings);
+                    entry = LDAPAuthenticationBackend.exists(userName, connection, config.userBase, config.userSearch, config.authzUserAttributes);
                     
                     if(log.isTraceEnabled()) {
                         log.trace("{} is not a valid DN and was resolved to {}", authenticatedUser, entry);
@@ -408,8 +489,7 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
 
             // Roles as an attribute of the user entry
             // default is userrolename: memberOf
-            final String userRoleName = settings
-                    .get(ConfigConstants.LDAP_AUTHZ_USERROLENAME, DEFAULT_USERROLENAME);
+            final String userRoleName = config.userRoleName;
             
             if(log.isTraceEnabled()) {
                 log.trace("userRoleName: {}", userRoleName);
@@ -437,7 +517,7 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
             // The attribute in a role entry containing the name of that role, Default is "name".
             // Can also be "dn" to use the full DN as rolename.
             // rolename: name
-            final String roleName = settings.get(ConfigConstants.LDAP_AUTHZ_ROLENAME, DEFAULT_ROLENAME);
+            final String roleName = config.roleName;
             
             if(log.isTraceEnabled()) {
                 log.trace("roleName: {}", roleName);
@@ -446,11 +526,11 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
             // Specify the name of the attribute which value should be substituted with {2}
             // Substituted with an attribute value from user's directory entry, of the authenticated user
             // userroleattribute: null
-            final String userRoleAttributeName = settings.get(ConfigConstants.LDAP_AUTHZ_USERROLEATTRIBUTE, null);
+            final String userRoleAttributeName = config.userRoleAttribute;
             
             if(log.isTraceEnabled()) {
                 log.trace("userRoleAttribute: {}", userRoleAttributeName);
-                log.trace("rolesearch: {}", settings.get(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, DEFAULT_ROLESEARCH));
+                log.trace("rolesearch: {}", config.roleSearch);
             }
             
             String userRoleAttributeValue = null;
@@ -460,58 +540,61 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
                 userRoleAttributeValue = userRoleAttribute.getStringValue();
             }
 
-            final List<LdapEntry> rolesResult = !rolesearchEnabled?null:LdapHelper.search(
-                    connection,
-                    settings.get(ConfigConstants.LDAP_AUTHZ_ROLEBASE, DEFAULT_ROLEBASE),
-                    settings.get(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, DEFAULT_ROLESEARCH)
-                    .replace(LDAPAuthenticationBackend.ZERO_PLACEHOLDER, Utils.escapeStringRfc2254(dn)).replace(ONE_PLACEHOLDER, originalUserName)
-                    .replace(TWO_PLACEHOLDER, userRoleAttributeValue == null ? TWO_PLACEHOLDER : userRoleAttributeValue), SearchScope.SUBTREE);
-            
-            if(rolesResult != null && !rolesResult.isEmpty()) {
-                for (final Iterator<LdapEntry> iterator = rolesResult.iterator(); iterator.hasNext();) {
-                    final LdapEntry searchResultEntry = iterator.next();
-                    roles.add(new LdapName(searchResultEntry.getDn()));
-                }
+            final boolean resolveNestedRoles = config.resolveNestedRoles;
+
+            // a reused user entry needs no connection, unless roles are searched or nested roles are resolved
+            if (connection == null && (config.rolesearchEnabled || (resolveNestedRoles && !roles.isEmpty()))) {
+                connection = getConnection(connectionPool, connectionFactory);
             }
 
+            // role entries which are already known and need no lookup when resolving nested roles
+            final Map<LdapName, LdapEntry> roleEntries = new ConcurrentHashMap<LdapName, LdapEntry>();
+
+            // {0} escaped user dn, {1} original user name, {2} value of userroleattribute (kept as is if there is none)
+            final int rolesResultCount = !config.rolesearchEnabled?0:LdapHelper.search(
+                    connection,
+                    config.roleBase,
+                    config.roleSearch.render(LDAPAuthenticationBackend.ESCAPE_ZERO, dn, originalUserName, userRoleAttributeValue), SearchScope.SUBTREE,
+                    config.searchLimits, searchResultEntry -> {
+                        final LdapName roleLdapName = toLdapName(searchResultEntry);
+                        roles.add(roleLdapName);
+
+                        // without nested roles only the dn is needed
+                        if (resolveNestedRoles) {
+                            roleEntries.put(roleLdapName, searchResultEntry);
+                        }
+                    }, config.roleSearchAttributes);
+
             if(log.isTraceEnabled()) {
-                log.trace("non user attr. roles count: {}", rolesResult != null?rolesResult.size():0);
-                log.trace("non user attr. roles {}", rolesResult);
+                log.trace("non user attr. roles count: {}", rolesResultCount);
                 log.trace("roles count total {}", roles.size());
             }
             
-            final List<String> nestedRoleFilter = settings.getAsList(ConfigConstants.LDAP_AUTHZ_NESTEDROLEFILTER, Collections.emptyList());
-
             // nested roles
-            if (settings.getAsBoolean(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, false)) {
+            if (resolveNestedRoles) {
 
                 if(log.isTraceEnabled()) {
                     log.trace("Evaluate nested roles");
                 }
 
-                final Set<LdapName> nestedReturn = new HashSet<LdapName>(roles);
+                final Set<LdapName> nestedReturn = resolveNestedRoles(roles, connection, roleEntries);
 
-                for (final LdapName roleLdapName: roles) {
-
-                    final Set<LdapName> nestedRoles = resolveNestedRoles(roleLdapName, connection, userRoleName, 0, rolesearchEnabled, nestedRoleFilter);
-
-                    if(log.isTraceEnabled()) {
-                        log.trace("{} nested roles for {}", nestedRoles.size(), roleLdapName);
-                    }
-
-                    nestedReturn.addAll(nestedRoles);
+                if(log.isTraceEnabled()) {
+                    log.trace("{} nested roles for {}", nestedReturn.size() - roles.size(), roles);
                 }
 
                 for (final LdapName roleLdapName: nestedReturn) {
                     final String role = getRoleFromAttribute(roleLdapName, roleName);
                     
                     if(!Strings.isNullOrEmpty(role)) {
-                        user.addRole(role);
+                        roleNames.add(role);
                     } else {
                         log.warn("No or empty attribute '{}' for entry {}", roleName, roleLdapName);
                     }
                 }
 
+                roles.addAll(nestedReturn);
+
                 /*
                 if (user instanceof LdapUser) {
                     ((LdapUser) user).addRoleEntries(nestedReturn);
@@ -523,7 +606,7 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
                     final String role = getRoleFromAttribute(roleLdapName, roleName);
                     
                     if(!Strings.isNullOrEmpty(role)) {
-                        user.addRole(role);
+                        roleNames.add(role);
                     } else {
                         log.warn("No or empty attribute '{}' for entry {}", roleName, roleLdapName);
                     }
@@ -534,11 +617,10 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
                 }*/
             }
             
+            return new ResolvedRoles(Collections.unmodifiableSet(roleNames), new LdapName(dn), Collections.unmodifiableSet(roles));
 
-            if(log.isTraceEnabled()) {
-                log.trace("returned user: {}", user);
-            }
-
+        } catch (final ElasticsearchSecurityException e) {
+            throw e;
         } catch (final Exception e) {
             if(log.isDebugEnabled()) {
                 log.debug("Unable to fill user roles due to ",e);
@@ -550,24 +632,370 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
 
     }
 
-    protected Set<LdapName> resolveNestedRoles(final LdapName roleDn, final Connection ldapConnection, String userRoleName,
-            int depth, final boolean rolesearchEnabled, final List<String> roleFilter)
+    /**
+     * Walk the group graph upwards level by level, starting from {@code roles}. Every group is expanded at most once,
+     * so membership cycles terminate and each group costs at most one lookup and one search per call.
+     * The walk stops early at {@code nested_role_max_depth} levels or {@code nested_role_max_count} roles.
+     *
+     * @return {@code roles} together with all their (transitive) parent roles
+     */
+    protected Set<LdapName> resolveNestedRoles(final Collection<LdapName> roles, final Connection ldapConnection,
+            final Map<LdapName, LdapEntry> knownEntries) throws ElasticsearchSecurityException, LdapException {
+
+        final int maxDepth = config.nestedRoleMaxDepth;
+        final int maxCount = config.nestedRoleMaxCount;
+
+        // all roles seen so far, a role is expanded when it is added
+        final Set<LdapName> visited = new HashSet<LdapName>(roles);
+        List<LdapName> level = new ArrayList<LdapName>(visited);
+        int depth = 0;
+
+        while (!level.isEmpty()) {
+
+            if (maxDepth > 0 && depth >= maxDepth) {
+                log.warn("Stop resolving nested roles after {} levels ({}), {} roles are not expanded", depth,
+                        ConfigConstants.LDAP_AUTHZ_NESTEDROLE_MAX_DEPTH, level.size());
+                break;
+            }
+
+            depth++;
+            final List<LdapName> nextLevel = new ArrayList<LdapName>();
+            final List<LdapName> expand = new ArrayList<LdapName>(level.size());
+
+            for (final LdapName roleDn: level) {
+
+                if(config.nestedRoleFilter.matches(roleDn.toString())) {
+
+                    if(log.isTraceEnabled()) {
+                        log.trace("Filter nested role {}", roleDn);
+                    }
+
+                    continue;
+                }
+
+                expand.add(roleDn);
+            }
+
+            final Map<LdapName, Set<LdapName>> parentRoles = config.nestedRoleParallelism > 1 && expand.size() > 1
+                    ? getParentRolesInParallel(expand, ldapConnection, depth, knownEntries)
+                    : getParentRoles(expand, ldapConnection, depth, knownEntries);
+
+            for (final LdapName roleDn: expand) {
+
+                for (final LdapName parent: parentRoles.get(roleDn)) {
+
+                    if (visited.contains(parent)) {
+                        continue;
+                    }
+
+                    if (maxCount > 0 && visited.size() >= maxCount) {
+                        log.warn("Stop resolving nested roles after {} roles ({})", visited.size(), ConfigConstants.LDAP_AUTHZ_NESTEDROLE_MAX_COUNT);
+                        return visited;
+                    }
+
+                    visited.add(parent);
+                    nextLevel.add(parent);
+                }
+            }
+
+            level = nextLevel;
+        }
+
+        return visited;
+    }
+
+    /**
+     * Split {@code roles} into up to {@code nested_role_parallelism} slices. All but the first slice are resolved on the
+     * nested role executor, each with its own (pooled) connection, the first one on the calling thread with {@code ldapConnection}.
+     * If the executor is busy slices run on the calling thread too, so one request can not occupy more than its share.
+     */
+    private Map<LdapName, Set<LdapName>> getParentRolesInParallel(final List<LdapName> roles, final Connection ldapConnection,
+            final int depth, final Map<LdapName, LdapEntry> knownEntries) throws ElasticsearchSecurityException, LdapException {
+
+        final int slices = Math.min(config.nestedRoleParallelism, roles.size());
+        final int sliceSize = (roles.size() + slices - 1) / slices;
+        final Map<LdapName, Set<LdapName>> result = new ConcurrentHashMap<LdapName, Set<LdapName>>(roles.size());
+        final List<Future<Void>> forks = new ArrayList<Future<Void>>(slices - 1);
+        final AccessControlContext acc = AccessController.getContext();
+
+        try {
+            for (int i = sliceSize; i < roles.size(); i += sliceSize) {
+                final List<LdapName> slice = roles.subList(i, Math.min(roles.size(), i + sliceSize));
+
+                forks.add(nestedRoleExecutor.submit(() -> AccessController.doPrivileged(new PrivilegedExceptionAction<Void>() {
+                    @Override
+                    public Void run() throws Exception {
+                        Connection connection = null;
+                        try {
+                            connection = getConnection(connectionPool, connectionFactory);
+                            result.putAll(getParentRoles(slice, connection, depth, knownEntries));
+                            return null;
+                        } finally {
+                            Utils.unbindAndCloseSilently(connection);
+                        }
+                    }
+                }, acc)));
+            }
+
+            result.putAll(getParentRoles(roles.subList(0, sliceSize), ldapConnection, depth, knownEntries));
+
+            for (final Future<Void> fork: forks) {
+                try {
+                    fork.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LdapException(e);
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause() instanceof PrivilegedActionException ? e.getCause().getCause() : e.getCause();
+
+                    if (cause instanceof LdapException) {
+                        throw (LdapException) cause;
+                    }
+                    if (cause instanceof ElasticsearchSecurityException) {
+                        throw (ElasticsearchSecurityException) cause;
+                    }
+                    throw new LdapException(e);
+                }
+            }
+
+            return result;
+        } finally {
+            for (final Future<Void> fork: forks) {
+                fork.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Direct parent roles of all {@code roles}. With {@code nested_role_batch_size} > 1 the roles which are not in the
+     * shared group cache are looked up and searched for up to that many roles at once, otherwise role by role.
+     */
+    private Map<LdapName, Set<LdapName>> getParentRoles(final List<LdapName> roles, final Connection ldapConnection,
+            final int depth, final Map<LdapName, LdapEntry> knownEntries) throws ElasticsearchSecurityException, LdapException {
+
+        final Map<LdapName, Set<LdapName>> result = new HashMap<LdapName, Set<LdapName>>(roles.size());
+        final int nestedRoleBatchSize = config.nestedRoleBatchSize;
+
+        if (!config.rolesearchEnabled || nestedRoleBatchSize <= 1) {
+            for (final LdapName roleDn: roles) {
+                result.put(roleDn, getParentRoles(roleDn, ldapConnection, depth));
+            }
+            return result;
+        }
+
+        final List<LdapName> uncached = new ArrayList<LdapName>(roles.size());
+
+        for (final LdapName roleDn: roles) {
+            final Set<LdapName> cached = groupParentCache == null ? null : groupParentCache.get(roleDn);
+
+            if (cached != null) {
+                result.put(roleDn, cached);
+            } else {
+                uncached.add(roleDn);
+            }
+        }
+
+        for (int i = 0; i < uncached.size(); i += nestedRoleBatchSize) {
+            final Map<LdapName, Set<LdapName>> parentRoles = searchParentRoles(uncached.subList(i, Math.min(uncached.size(), i + nestedRoleBatchSize)),
+                    ldapConnection, depth, knownEntries);
+
+            for (final Map.Entry<LdapName, Set<LdapName>> parents: parentRoles.entrySet()) {
+                final Set<LdapName> unmodifiable = Collections.unmodifiableSet(parents.getValue());
+
+                if (groupParentCache != null) {
+                    groupParentCache.put(parents.getKey(), unmodifiable);
+                }
+
+                result.put(parents.getKey(), unmodifiable);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Parent roles of {@code roles}, their entries are read with one lookup and their parents found with one role search.
+     * A parent is attributed to the roles its member attribute (the attribute compared in {@code rolesearch}) contains.
+     * If a found entry contains none of them, e.g. because the directory matches members in another form, the batch
+     * is searched again role by role.
+     */
+    private Map<LdapName, Set<LdapName>> searchParentRoles(final List<LdapName> roles, final Connection ldapConnection, final int depth,
+            final Map<LdapName, LdapEntry> knownEntries) throws ElasticsearchSecurityException, LdapException {
+
+        final Map<LdapName, Set<LdapName>> result = new HashMap<LdapName, Set<LdapName>>(roles.size());
+        final List<LdapName> unknown = new ArrayList<LdapName>(roles.size());
+
+        for (final LdapName roleDn: roles) {
+            if (!knownEntries.containsKey(roleDn)) {
+                unknown.add(roleDn);
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            knownEntries.putAll(LdapHelper.lookup(ldapConnection, config.roleBase, unknown, config.roleLookupAttributes));
+        }
+
+        final StringBuilder filter = new StringBuilder(roles.size() * 64);
+
+        if (roles.size() > 1) {
+            filter.append("(|");
+        }
+
+        for (final LdapName roleDn: roles) {
+
+            result.put(roleDn, getRolesFromAttribute(knownEntries.get(roleDn), roleDn));
+
+            final String dn = roleDn.toString();
+            final int start = filter.length();
+
+            config.roleSearch.appendTo(filter, ESCAPE_ZERO_ONE, dn, dn);
+
+            if (roles.size() > 1 && (filter.length() == start || filter.charAt(start) != '(')) {
+                filter.insert(start, '(').append(')');
+            }
+        }
+
+        if (roles.size() > 1) {
+            filter.append(')');
+        }
+
+        final List<LdapName> unattributed = new ArrayList<LdapName>();
+
+        final int rolesResultCount = LdapHelper.search(ldapConnection, config.roleBase,
+                filter.toString(), SearchScope.SUBTREE, config.searchLimits, entry -> {
+
+            final LdapName dn = toLdapName(entry);
+            boolean attributed = false;
+
+            for (final String memberAttribute: config.roleSearchMemberAttributes) {
+                final LdapAttribute members = entry.getAttribute(memberAttribute);
+
+                if (members == null) {
+                    continue;
+                }
+
+                for (final String member: members.getStringValues()) {
+                    final Set<LdapName> parents;
+
+                    try {
+                        parents = result.get(new LdapName(member));
+                    } catch (final InvalidNameException e) {
+                        continue;
+                    }
+
+                    if (parents != null) {
+                        parents.add(dn);
+                        attributed = true;
+                    }
+                }
+
+                if (!memberAttribute.equalsIgnoreCase(config.userRoleName)) {
+                    entry.removeAttribute(memberAttribute);
+                }
+            }
+
+            knownEntries.put(dn, entry);
+
+            if (!attributed) {
+                unattributed.add(dn);
+            }
+        }, config.batchedRoleSearchAttributes);
+
+        if (log.isTraceEnabled()) {
+            log.trace("result nested batch search count for depth {} and {} roles: {}", depth, roles.size(), rolesResultCount);
+        }
+
+        if (!unattributed.isEmpty()) {
+            if (log.isDebugEnabled()) {
+                log.debug("Members of {} do not name the searched roles, search the parents of {} roles one by one", unattributed, roles.size());
+            }
+
+            for (final LdapName roleDn: roles) {
+                searchParentRoles(roleDn, ldapConnection, depth, result.get(roleDn));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Direct parent roles of {@code roleDn}, from the shared group cache if enabled
+     */
+    private Set<LdapName> getParentRoles(final LdapName roleDn, final Connection ldapConnection, final int depth)
             throws ElasticsearchSecurityException, LdapException {
-        
-        if(roleFilter.size() > 0  && WildcardMatcher.matchAny(roleFilter, roleDn.toString())) {
-            
-            if(log.isTraceEnabled()) {
-                log.trace("Filter nested role {}", roleDn);
+
+        if (groupParentCache == null) {
+            return lookupParentRoles(roleDn, ldapConnection, depth);
+        }
+
+        try {
+            return groupParentCache.getParents(roleDn, k -> lookupParentRoles(k, ldapConnection, depth));
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof LdapException) {
+                throw (LdapException) e.getCause();
             }
-            
-            return Collections.emptySet();
+            if (e.getCause() instanceof ElasticsearchSecurityException) {
+                throw (ElasticsearchSecurityException) e.getCause();
+            }
+            throw new LdapException(e);
         }
-              
-        depth++;
+    }
+
+    private Set<LdapName> lookupParentRoles(final LdapName roleDn, final Connection ldapConnection, final int depth)
+            throws ElasticsearchSecurityException, LdapException {
+
+        final Set<LdapName> result = getRolesFromAttribute(LdapHelper.lookup(ldapConnection, roleDn.toString(), config.roleLookupAttributes), roleDn);
+
+        if (log.isTraceEnabled()) {
+            log.trace("result nested attr count for depth {} : {}", depth, result.size());
+        }
+        
+        if (config.rolesearchEnabled) {
+            searchParentRoles(roleDn, ldapConnection, depth, result);
+        }
+
+        return Collections.unmodifiableSet(result);
+    }
+
+    private void searchParentRoles(final LdapName roleDn, final Connection ldapConnection, final int depth, final Set<LdapName> result)
+            throws ElasticsearchSecurityException, LdapException {
+
+        final String dn = roleDn.toString();
+
+        final int rolesResultCount = LdapHelper
+                .search(ldapConnection,
+                        config.roleBase,
+                        config.roleSearch.render(ESCAPE_ZERO_ONE, dn, dn), SearchScope.SUBTREE,
+                        config.searchLimits, entry -> result.add(toLdapName(entry)), ReturnAttributes.NONE.value());
+
+        if (log.isTraceEnabled()) {
+            log.trace("result nested search count for depth {}: {}", depth, rolesResultCount);
+        }
+    }
+
+    private static LdapName toLdapName(final LdapEntry entry) throws LdapException {
+        try {
+            return new LdapName(entry.getDn());
+        } catch (final InvalidNameException e) {
+            throw new LdapException(e);
+        }
+    }
+
+    /**
+     * Role DNs found in the {@code userrolename} attribute of a role entry
+     */
+    private Set<LdapName> getRolesFromAttribute(final LdapEntry e0, final LdapName roleDn) {
+
+        final String userRoleName = config.userRoleName;
 
         final Set<LdapName> result = new HashSet<LdapName>(20);
 
-        final LdapEntry e0 = LdapHelper.lookup(ldapConnection, roleDn.toString());
+        if (e0 == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Role {} not found", roleDn);
+            }
+            return result;
+        }
 
         if (e0.getAttribute(userRoleName) != null) {
             final Collection<String> userRoles = e0.getAttribute(userRoleName).getStringValues();
@@ -587,41 +1015,61 @@ public class LDAPAuthorizationBackend implements AuthorizationBackend {
             }
         }
 
-        if (log.isTraceEnabled()) {
-            log.trace("result nested attr count for depth {} : {}", depth, result.size());
+        return result;
+    }
+
+    /**
+     * The role names of a user together with the DNs they were derived from, to find the cached roles a change affects
+     */
+    private static final class ResolvedRoles {
+        private final Set<String> names;
+        private final LdapName userDn;
+        private final Set<LdapName> roleDns;
+
+        private ResolvedRoles(final Set<String> names, final LdapName userDn, final Set<LdapName> roleDns) {
+            this.names = names;
+            this.userDn = userDn;
+            this.roleDns = roleDns;
         }
-        
-        final String escapedDn = Utils.escapeStringRfc2254(roleDn.toString());
+    }
 
-        final List<LdapEntry> rolesResult = !rolesearchEnabled?null:LdapHelper
-                .search(ldapConnection,
-                        settings.get(ConfigConstants.LDAP_AUTHZ_ROLEBASE, DEFAULT_ROLEBASE),
-                        settings.get(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, DEFAULT_ROLESEARCH)
-                                .replace(LDAPAuthenticationBackend.ZERO_PLACEHOLDER, escapedDn)
-                                .replace(ONE_PLACEHOLDER, escapedDn), SearchScope.SUBTREE);
+    private static final class CachedRoles {
+        private final RoleCacheKey key;
+        private final ResolvedRoles roles;
+        private final long resolved = System.currentTimeMillis();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
 
-        if (log.isTraceEnabled()) {
-            log.trace("result nested search count for depth {}: {}", depth, rolesResult==null?0:rolesResult.size());
+        private CachedRoles(final RoleCacheKey key, final ResolvedRoles roles) {
+            this.key = key;
+            this.roles = roles;
         }
+    }
 
-        
-        if(rolesResult != null) {
-            for (final LdapEntry entry : rolesResult) {
-                try {
-                    final LdapName dn = new LdapName(entry.getDn());
-                    result.add(dn);
-                } catch (final InvalidNameException e) {
-                    throw new LdapException(e);
-                }
-            }
+    private static final class RoleCacheKey {
+        private final String user;
+        private final String originalUserName;
+
+        private RoleCacheKey(final String user, final String originalUserName) {
+            this.user = user;
+            this.originalUserName = originalUserName;
         }
 
-        for (final LdapName nm : new HashSet<LdapName>(result)) {
-            final Set<LdapName> in = resolveNestedRoles(nm, ldapConnection, userRoleName, depth, rolesearchEnabled, roleFilter);
-            result.addAll(in);
+        @Override
+        public int hashCode() {
+            return Objects.hash(user, originalUserName);
         }
 
-        return result;
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof RoleCacheKey)) {
+                return false;
+            }
+            final RoleCacheKey other = (RoleCacheKey) obj;
+            return user.equals(other.user) && Objects.equals(originalUserName, other.originalUserName);
+        }
     }
 
     @Override
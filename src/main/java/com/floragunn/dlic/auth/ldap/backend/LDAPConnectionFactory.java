@@ -0,0 +1,890 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.backend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.settings.Settings;
+import org.ldaptive.BindOperation;
+import org.ldaptive.BindRequest;
+import org.ldaptive.Connection;
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.Credential;
+import org.ldaptive.Response;
+import org.ldaptive.control.RequestControl;
+import org.ldaptive.provider.ProviderConnection;
+import org.ldaptive.DefaultConnectionFactory;
+import org.ldaptive.LdapException;
+import org.ldaptive.ResultCode;
+import org.ldaptive.pool.SearchValidator;
+import org.ldaptive.sasl.ExternalConfig;
+import org.ldaptive.ssl.AllowAnyHostnameVerifier;
+import org.ldaptive.ssl.CredentialConfig;
+import org.ldaptive.ssl.CredentialConfigFactory;
+import org.ldaptive.ssl.HostnameVerifyingTrustManager;
+import org.ldaptive.ssl.SslConfig;
+
+import com.floragunn.dlic.auth.ldap.util.BackgroundTasks;
+import com.floragunn.dlic.auth.ldap.util.ConfigConstants;
+import com.floragunn.dlic.auth.ldap.util.HostHealthRegistry;
+import com.floragunn.dlic.auth.ldap.util.HostSelectionStrategy;
+import com.floragunn.dlic.auth.ldap.util.LdapConnectionPool;
+import com.floragunn.dlic.auth.ldap.util.Utils;
+import com.floragunn.searchguard.ssl.util.SSLConfigConstants;
+import com.floragunn.searchguard.support.PemKeyReader;
+
+/**
+ * Opens bound connections to the configured ldap hosts.
+ * <p>
+ * TLS material (PEM files/content or trust- and keystores) is parsed once into an immutable snapshot
+ * of per host connection configurations. The snapshot is only rebuilt if the checksum of one of the
+ * underlying files changes, the files are checked at most every {@code ssl_config_reload_interval} ms.
+ * <p>
+ * The order in which the hosts are tried is decided by the {@link HostSelectionStrategy} configured with
+ * {@code host_selection}. If {@code health.enabled} is true (default false), hosts which failed repeatedly are
+ * tried last (see {@link HostHealthRegistry}) and probed in the background with a rootDSE read every
+ * {@code health.probe_interval} ms until they recover.
+ */
+public class LDAPConnectionFactory {
+
+    private static final List<String> DEFAULT_TLS_PROTOCOLS = Arrays.asList(new String[] { "TLSv1.2", "TLSv1.1"});
+    private static final Object ABANDONED = new Object();
+
+    protected static final Logger log = LogManager.getLogger(LDAPConnectionFactory.class);
+
+    private final Settings settings;
+    private final Path configPath;
+    private final boolean enableSSL;
+    private final List<String> ldapHosts;
+    private final BindRequest serviceBindRequest;
+    private final long reloadInterval;
+    private final int raceParallelism;
+    private final long raceStagger;
+    private final HostHealthRegistry health;
+    private final HostSelectionStrategy hostSelection;
+    private volatile ConnectionSetup setup;
+    private volatile long lastChecked;
+
+    public LDAPConnectionFactory(final Settings settings, final Path configPath) {
+        this.settings = settings;
+        this.configPath = configPath;
+        this.enableSSL = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_SSL, false);
+        this.ldapHosts = settings.getAsList(ConfigConstants.LDAP_HOSTS, Collections.singletonList("localhost"));
+        this.serviceBindRequest = createServiceBindRequest(settings);
+        this.reloadInterval = settings.getAsLong(ConfigConstants.LDAPS_SSL_CONFIG_RELOAD_INTERVAL, ConfigConstants.LDAPS_SSL_CONFIG_RELOAD_INTERVAL_DEFAULT);
+
+        final String connectMode = settings.get(ConfigConstants.LDAP_CONNECT_MODE, ConfigConstants.LDAP_CONNECT_MODE_SEQUENTIAL);
+
+        if (ConfigConstants.LDAP_CONNECT_MODE_RACE.equalsIgnoreCase(connectMode)) {
+            this.raceParallelism = Math.max(1, settings.getAsInt(ConfigConstants.LDAP_RACE_PARALLELISM, ConfigConstants.LDAP_RACE_PARALLELISM_DEFAULT));
+        } else if (ConfigConstants.LDAP_CONNECT_MODE_SEQUENTIAL.equalsIgnoreCase(connectMode)) {
+            this.raceParallelism = 1;
+        } else {
+            throw new IllegalArgumentException("Unknown " + ConfigConstants.LDAP_CONNECT_MODE + ": " + connectMode);
+        }
+
+        this.raceStagger = settings.getAsLong(ConfigConstants.LDAP_RACE_STAGGER, ConfigConstants.LDAP_RACE_STAGGER_DEFAULT);
+
+        this.hostSelection = HostSelectionStrategy.create(settings);
+        this.health = new HostHealthRegistry(settings, ldapHosts);
+
+        if (settings.getAsBoolean(ConfigConstants.LDAP_HEALTH_ENABLED, false)) {
+            final long probeInterval = settings.getAsLong(ConfigConstants.LDAP_HEALTH_PROBE_INTERVAL, ConfigConstants.LDAP_HEALTH_PROBE_INTERVAL_DEFAULT);
+            BackgroundTasks.scheduleWithFixedDelay(this, LDAPConnectionFactory::probeUnavailableHosts, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            this.setup = privileged(new PrivilegedExceptionAction<ConnectionSetup>() {
+                @Override
+                public ConnectionSetup run() throws Exception {
+                    return createSetup();
+                }
+            });
+            this.lastChecked = System.currentTimeMillis();
+        } catch (final Exception e) {
+            // retried (and reported to the caller) on first connect
+            log.warn("Unable to configure ldap connections due to {}", e.toString());
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to configure ldap connections due to ", e);
+            }
+        }
+    }
+
+    public List<String> getHosts() {
+        return ldapHosts;
+    }
+
+    /**
+     * @return the health and load of the hosts
+     */
+    public HostHealthRegistry getHealth() {
+        return health;
+    }
+
+    /**
+     * Open a connection bound with the configured service account
+     */
+    public Connection getConnection() throws Exception {
+        return getConnection(null);
+    }
+
+    /**
+     * Open a connection bound with the given bind request, or with the configured service account if {@code bindRequest} is null
+     */
+    public Connection getConnection(final BindRequest bindRequest) throws Exception {
+        return privileged(new PrivilegedExceptionAction<Connection>() {
+            @Override
+            public Connection run() throws Exception {
+                return getConnection0(bindRequest, null);
+            }
+        });
+    }
+
+    /**
+     * Bind an already open connection again, with the given bind request or with the configured service account if
+     * {@code bindRequest} is null. Unlike {@link Connection#reopen(BindRequest)} this does not open a new connection.
+     */
+    public void bind(final Connection connection, final BindRequest bindRequest) throws Exception {
+        privileged(new PrivilegedExceptionAction<Response<Void>>() {
+            @Override
+            public Response<Void> run() throws Exception {
+                return new BindOperation(connection).execute(bindRequest == null ? serviceBindRequest : bindRequest);
+            }
+        });
+    }
+
+    /**
+     * Open a connection bound with the configured service account on which a response is awaited for at most
+     * {@code responseTimeout} ms instead of {@code response_timeout}. TLS and host health are shared with all other connections.
+     */
+    Connection getConnection(final long responseTimeout) throws Exception {
+        return privileged(new PrivilegedExceptionAction<Connection>() {
+            @Override
+            public Connection run() throws Exception {
+                return getConnection0(null, responseTimeout);
+            }
+        });
+    }
+
+    private Connection getConnection0(final BindRequest bindRequest, final Long responseTimeout) throws Exception {
+
+        final ConnectionSetup setup;
+
+        try {
+            setup = getSetup();
+        } catch (final Exception e) {
+            log.warn("Unable to configure connections to ldapservers {} due to {}", ldapHosts, e.toString());
+            throw new LdapException("Unable to connect to any of those ldap servers " + ldapHosts, e);
+        }
+
+        final Map<String, DefaultConnectionFactory> connectionFactories = responseTimeout == null ? setup.connectionFactories
+                : setup.getConnectionFactories(responseTimeout);
+        final BindRequest br = bindRequest == null ? serviceBindRequest : bindRequest;
+        final List<String> hosts = selectHosts();
+
+        if (raceParallelism > 1 && hosts.size() > 1) {
+            return raceConnection(connectionFactories, hosts, br, bindRequest != null);
+        }
+
+        Connection connection = null;
+
+        for (String ldapHost: hosts) {
+
+            try {
+                connection = connect(connectionFactories, ldapHost, br, null);
+
+                if (connection != null && connection.isOpen()) {
+                    break;
+                }
+            } catch (final Exception e) {
+
+                if (bindRequest != null && isInvalidCredentials(e)) {
+                    // server is reachable but rejected the credentials, other hosts will do the same
+                    throw e;
+                }
+
+                log.warn("Unable to connect to ldapserver {} due to {}. Try next.", ldapHost, e.toString());
+                if(log.isDebugEnabled()) {
+                    log.debug("Unable to connect to ldapserver due to ",e);
+                }
+                connection = null;
+                continue;
+            }
+        }
+
+        if (connection == null || !connection.isOpen()) {
+            throw new LdapException("Unable to connect to any of those ldap servers " + ldapHosts);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Start connection attempts to up to {@code race.parallelism} hosts, staggered by {@code race.stagger} ms,
+     * keep the first one which is bound and close all others. The next host is started as soon as an attempt fails.
+     */
+    private Connection raceConnection(final Map<String, DefaultConnectionFactory> connectionFactories, final List<String> hosts, final BindRequest br,
+            final boolean userBind) throws Exception {
+
+        // holds the winning connection, or ABANDONED if the race was given up
+        final AtomicReference<Object> winner = new AtomicReference<Object>();
+        final CompletionService<Connection> completionService = new ExecutorCompletionService<Connection>(BackgroundTasks.workers());
+        final List<Future<Connection>> attempts = new ArrayList<Future<Connection>>(hosts.size());
+        final AccessControlContext acc = AccessController.getContext();
+
+        int next = 0;
+        int inFlight = 0;
+        Connection result = null;
+
+        try {
+            while (true) {
+
+                if (inFlight == 0 || (inFlight < raceParallelism && next < hosts.size())) {
+
+                    if (next >= hosts.size()) {
+                        throw new LdapException("Unable to connect to any of those ldap servers " + ldapHosts);
+                    }
+
+                    final String ldapHost = hosts.get(next++);
+                    attempts.add(completionService.submit(new Callable<Connection>() {
+                        @Override
+                        public Connection call() throws Exception {
+                            return AccessController.doPrivileged(new PrivilegedExceptionAction<Connection>() {
+                                @Override
+                                public Connection run() throws Exception {
+                                    final Connection connection = connect(connectionFactories, ldapHost, br, winner);
+
+                                    if (!winner.compareAndSet(null, connection)) {
+                                        // another host was faster or the race was abandoned
+                                        Utils.unbindAndCloseSilently(connection);
+                                        return null;
+                                    }
+
+                                    return connection;
+                                }
+                            }, acc);
+                        }
+                    }));
+                    inFlight++;
+                }
+
+                final Future<Connection> done = inFlight < raceParallelism && next < hosts.size()
+                        ? completionService.poll(raceStagger, TimeUnit.MILLISECONDS) : completionService.take();
+
+                if (done == null) {
+                    // stagger elapsed, start the next host
+                    continue;
+                }
+
+                inFlight--;
+
+                try {
+                    result = done.get();
+
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (final ExecutionException e) {
+                    final Throwable t = e.getCause() instanceof PrivilegedActionException
+                            ? ((PrivilegedActionException) e.getCause()).getException() : e.getCause();
+                    final Exception cause = t instanceof Exception ? (Exception) t : e;
+
+                    if (userBind && isInvalidCredentials(cause)) {
+                        throw cause;
+                    }
+
+                    log.warn("Unable to connect to ldapserver {} due to {}. Try next.", hosts.get(attempts.indexOf(done)), cause.toString());
+                    if(log.isDebugEnabled()) {
+                        log.debug("Unable to connect to ldapserver due to ", cause);
+                    }
+
+                    if (inFlight == 0 && next >= hosts.size()) {
+                        throw new LdapException("Unable to connect to any of those ldap servers " + ldapHosts);
+                    }
+                }
+            }
+        } finally {
+            if (result == null && !winner.compareAndSet(null, ABANDONED)) {
+                // an attempt succeeded after we gave up
+                final Object w = winner.get();
+                if (w instanceof Connection) {
+                    Utils.unbindAndCloseSilently((Connection) w);
+                }
+            }
+
+            for (final Future<Connection> attempt: attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The available hosts ordered by the host selection strategy followed by the unavailable ones
+     */
+    private List<String> selectHosts() {
+
+        final List<String> unavailable = health.getUnavailableHosts();
+
+        if (unavailable.isEmpty()) {
+            return hostSelection.select(ldapHosts, health);
+        }
+
+        final List<String> hosts = new ArrayList<String>(ldapHosts.size());
+        hosts.addAll(hostSelection.select(health.getAvailableHosts(), health));
+        hosts.addAll(unavailable);
+        return hosts;
+    }
+
+    /**
+     * Open a connection and record the outcome in the health registry. Failures of race attempts which
+     * finish after the race was decided ({@code race} is not null anymore) are not held against the host.
+     */
+    private Connection connect(final Map<String, DefaultConnectionFactory> connectionFactories, final String ldapHost, final BindRequest br,
+            final AtomicReference<Object> race) throws Exception {
+
+        final long start = System.nanoTime();
+
+        try {
+            final Connection connection = openConnection(connectionFactories, ldapHost, br);
+            health.onSuccess(ldapHost, System.nanoTime() - start);
+            return new TrackedConnection(ldapHost, connection);
+        } catch (final Exception e) {
+            if (isInvalidCredentials(e)) {
+                // host answered
+                health.onSuccess(ldapHost, System.nanoTime() - start);
+            } else if (race == null || race.get() == null) {
+                health.onFailure(ldapHost, e);
+            }
+            throw e;
+        }
+    }
+
+    private Connection openConnection(final Map<String, DefaultConnectionFactory> connectionFactories, final String ldapHost, final BindRequest br) throws Exception {
+
+        if(log.isTraceEnabled()) {
+            log.trace("Connect to {}", ldapHost);
+        }
+
+        final DefaultConnectionFactory connFactory = connectionFactories.get(ldapHost);
+
+        if(log.isTraceEnabled()) {
+            log.trace("Connect to {}", connFactory.getConnectionConfig().getLdapUrl());
+        }
+
+        final Connection connection = connFactory.getConnection();
+
+        try {
+            connection.open(br);
+        } catch (final Exception e) {
+            Utils.unbindAndCloseSilently(connection);
+            throw e;
+        }
+
+        return connection;
+    }
+
+    /**
+     * Read the rootDSE of all hosts with an open circuit, close the circuit of the hosts which answer
+     */
+    private void probeUnavailableHosts() {
+
+        final List<String> unavailable = health.getUnavailableHosts();
+
+        if (unavailable.isEmpty()) {
+            return;
+        }
+
+        final ConnectionSetup setup;
+
+        try {
+            setup = privileged(new PrivilegedExceptionAction<ConnectionSetup>() {
+                @Override
+                public ConnectionSetup run() throws Exception {
+                    return getSetup();
+                }
+            });
+        } catch (final Exception e) {
+            log.warn("Unable to probe ldap hosts {} due to {}", unavailable, e.toString());
+            return;
+        }
+
+        for (final String ldapHost: unavailable) {
+
+            if (log.isDebugEnabled()) {
+                log.debug("Probe ldap host {}", ldapHost);
+            }
+
+            try {
+                final boolean valid = privileged(new PrivilegedExceptionAction<Boolean>() {
+                    @Override
+                    public Boolean run() throws Exception {
+                        final long start = System.nanoTime();
+                        Connection connection = null;
+
+                        try {
+                            connection = openConnection(setup.connectionFactories, ldapHost, serviceBindRequest);
+
+                            if (new SearchValidator().validate(connection)) {
+                                health.onSuccess(ldapHost, System.nanoTime() - start);
+                                return true;
+                            }
+
+                            return false;
+                        } finally {
+                            Utils.unbindAndCloseSilently(connection);
+                        }
+                    }
+                });
+
+                if (!valid) {
+                    health.onFailure(ldapHost, null);
+                }
+            } catch (final Exception e) {
+                health.onFailure(ldapHost, e);
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Probe of ldap host {} failed due to {}", ldapHost, e.toString());
+                }
+            }
+        }
+    }
+
+    private static boolean isInvalidCredentials(final Exception e) {
+        return e instanceof LdapException && ((LdapException) e).getResultCode() == ResultCode.INVALID_CREDENTIALS;
+    }
+
+    private ConnectionSetup getSetup() throws Exception {
+
+        ConnectionSetup current = setup;
+
+        if (current != null && (reloadInterval <= 0 || System.currentTimeMillis() - lastChecked < reloadInterval)) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = setup;
+
+            if (current == null) {
+                current = setup = createSetup();
+                lastChecked = System.currentTimeMillis();
+                return current;
+            }
+
+            if (System.currentTimeMillis() - lastChecked < reloadInterval) {
+                return current;
+            }
+
+            lastChecked = System.currentTimeMillis();
+
+            if (current.fileChecksums.equals(computeFileChecksums())) {
+                return current;
+            }
+
+            log.info("TLS files for ldap connections changed, reload them");
+
+            try {
+                current = setup = createSetup();
+            } catch (final Exception e) {
+                log.error("Unable to reload TLS files for ldap connections, keep the current ones. Reason: {}", e.toString());
+            }
+
+            return current;
+        }
+    }
+
+    private ConnectionSetup createSetup() throws Exception {
+
+        final Map<String, Long> checksums = computeFileChecksums();
+        final Map<String, Object> props = new HashMap<String, Object>();
+        final SslConfig sslConfig = createSslConfig(props);
+        final Map<String, DefaultConnectionFactory> connectionFactories = new HashMap<String, DefaultConnectionFactory>();
+
+        for (final String ldapHost: ldapHosts) {
+
+            final String[] split = ldapHost.split(":");
+
+            int port = 389;
+
+            if (split.length > 1) {
+                port = Integer.parseInt(split[1]);
+            } else {
+                port = enableSSL ? 636 : 389;
+            }
+
+            final ConnectionConfig config = new ConnectionConfig();
+            config.setLdapUrl("ldap" + (enableSSL ? "s" : "") + "://" + split[0] + ":" + port);
+            configureConnection(config, sslConfig);
+
+            final DefaultConnectionFactory connFactory = new DefaultConnectionFactory(config);
+            connFactory.getProvider().getProviderConfig().setProperties(props);
+            connectionFactories.put(ldapHost, connFactory);
+        }
+
+        return new ConnectionSetup(connectionFactories, checksums);
+    }
+
+    private void configureConnection(final ConnectionConfig config, final SslConfig sslConfig) {
+
+        if (sslConfig != null) {
+            config.setSslConfig(sslConfig);
+        }
+
+        config.setUseSSL(enableSSL);
+        config.setUseStartTLS(settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_START_TLS, false));
+
+        final long connectTimeout = settings.getAsLong(ConfigConstants.LDAP_CONNECT_TIMEOUT, 5000L);
+        final long responseTimeout = settings.getAsLong(ConfigConstants.LDAP_RESPONSE_TIMEOUT, -1L);
+
+        config.setConnectTimeout(connectTimeout); // 5 sec by default
+        config.setResponseTimeout(responseTimeout);
+
+        if(log.isDebugEnabled()) {
+            log.debug("Connect timeout: "+config.getConnectTimeout()+"/ResponseTimeout: "+config.getResponseTimeout());
+        }
+    }
+
+    private SslConfig createSslConfig(final Map<String, Object> props) throws Exception {
+
+        final boolean enableStartTLS = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_START_TLS, false);
+
+        if (!enableSSL && !enableStartTLS) {
+            return null;
+        }
+
+        final boolean enableClientAuth = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH, ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH_DEFAULT);
+        final boolean verifyHostnames = settings.getAsBoolean(ConfigConstants.LDAPS_VERIFY_HOSTNAMES, ConfigConstants.LDAPS_VERIFY_HOSTNAMES_DEFAULT);
+
+        if(enableStartTLS && !verifyHostnames) {
+            props.put("jndi.starttls.allowAnyHostname", "true");
+        }
+
+        final boolean pem = settings.get(ConfigConstants.LDAPS_PEMTRUSTEDCAS_FILEPATH, null) != null
+                || settings.get(ConfigConstants.LDAPS_PEMTRUSTEDCAS_CONTENT, null) != null;
+
+        final SslConfig sslConfig = new SslConfig();
+        CredentialConfig cc;
+
+        if(pem) {
+            X509Certificate[] trustCertificates = PemKeyReader.loadCertificatesFromStream(PemKeyReader.resolveStream(ConfigConstants.LDAPS_PEMTRUSTEDCAS_CONTENT, settings));
+
+            if(trustCertificates == null) {
+                trustCertificates = PemKeyReader.loadCertificatesFromFile(PemKeyReader.resolve(ConfigConstants.LDAPS_PEMTRUSTEDCAS_FILEPATH, settings, configPath, true));
+            }
+                //for client authentication
+            X509Certificate authenticationCertificate =  PemKeyReader.loadCertificateFromStream(PemKeyReader.resolveStream(ConfigConstants.LDAPS_PEMCERT_CONTENT, settings));
+
+            if(authenticationCertificate == null) {
+                authenticationCertificate = PemKeyReader.loadCertificateFromFile(PemKeyReader.resolve(ConfigConstants.LDAPS_PEMCERT_FILEPATH, settings, configPath, enableClientAuth));
+            }
+
+            PrivateKey authenticationKey = PemKeyReader.loadKeyFromStream(settings.get(ConfigConstants.LDAPS_PEMKEY_PASSWORD), PemKeyReader.resolveStream(ConfigConstants.LDAPS_PEMKEY_CONTENT, settings));
+
+            if(authenticationKey == null) {
+                authenticationKey = PemKeyReader.loadKeyFromFile(settings.get(ConfigConstants.LDAPS_PEMKEY_PASSWORD), PemKeyReader.resolve(ConfigConstants.LDAPS_PEMKEY_FILEPATH, settings, configPath, enableClientAuth));
+            }
+
+            cc = CredentialConfigFactory.createX509CredentialConfig(trustCertificates, authenticationCertificate, authenticationKey);
+
+            if(log.isDebugEnabled()) {
+                log.debug("Use PEM to secure communication with LDAP server (client auth is {})", authenticationKey!=null);
+            }
+
+        } else {
+            final KeyStore trustStore = PemKeyReader.loadKeyStore(PemKeyReader.resolve(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_TRUSTSTORE_FILEPATH, settings, configPath, true)
+                    , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_TRUSTSTORE_PASSWORD, SSLConfigConstants.DEFAULT_STORE_PASSWORD)
+                    , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_TRUSTSTORE_TYPE));
+
+            final List<String> trustStoreAliases = settings.getAsList(ConfigConstants.LDAPS_JKS_TRUST_ALIAS, null);
+
+            //for client authentication
+            final KeyStore keyStore = PemKeyReader.loadKeyStore(PemKeyReader.resolve(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_FILEPATH, settings, configPath, enableClientAuth)
+                    , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_PASSWORD, SSLConfigConstants.DEFAULT_STORE_PASSWORD)
+                    , settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_TYPE));
+            final String keyStorePassword = settings.get(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_PASSWORD, SSLConfigConstants.DEFAULT_STORE_PASSWORD);
+
+            final String keyStoreAlias = settings.get(ConfigConstants.LDAPS_JKS_CERT_ALIAS, null);
+            final String[] keyStoreAliases = keyStoreAlias==null?null:new String[]{keyStoreAlias};
+
+            if(enableClientAuth && keyStoreAliases == null) {
+                throw new IllegalArgumentException(ConfigConstants.LDAPS_JKS_CERT_ALIAS+" not given");
+            }
+
+            if(log.isDebugEnabled()) {
+                log.debug("Use Trust-/Keystore to secure communication with LDAP server (client auth is {})", keyStore!=null);
+                log.debug("trustStoreAliases: {}, keyStoreAlias: {}",  trustStoreAliases, keyStoreAlias);
+            }
+
+            cc = CredentialConfigFactory.createKeyStoreCredentialConfig(trustStore, trustStoreAliases==null?null:trustStoreAliases.toArray(new String[0]), keyStore, keyStorePassword, keyStoreAliases);
+
+        }
+
+        sslConfig.setCredentialConfig(cc);
+
+        if(!verifyHostnames) {
+            sslConfig.setTrustManagers(new HostnameVerifyingTrustManager(new AllowAnyHostnameVerifier(), "dummy"));
+        }
+
+        //https://github.com/floragunncom/search-guard/issues/227
+        final List<String> enabledCipherSuites = settings.getAsList(ConfigConstants.LDAPS_ENABLED_SSL_CIPHERS, Collections.emptyList());
+        final List<String> enabledProtocols = settings.getAsList(ConfigConstants.LDAPS_ENABLED_SSL_PROTOCOLS, DEFAULT_TLS_PROTOCOLS);
+
+
+        if(enabledCipherSuites.size() > 0) {
+            sslConfig.setEnabledCipherSuites(enabledCipherSuites.toArray(new String[0]));
+            log.debug("enabled ssl cipher suites for ldaps {}", enabledCipherSuites);
+        }
+
+        log.debug("enabled ssl/tls protocols for ldaps {}", enabledProtocols);
+        sslConfig.setEnabledProtocols(enabledProtocols.toArray(new String[0]));
+        return sslConfig;
+    }
+
+    /**
+     * CRC32 checksums of all configured TLS files, missing or unreadable files have a checksum of -1
+     */
+    private Map<String, Long> computeFileChecksums() {
+
+        final List<String> keys = new ArrayList<String>();
+
+        if (settings.get(ConfigConstants.LDAPS_PEMTRUSTEDCAS_FILEPATH, null) != null
+                || settings.get(ConfigConstants.LDAPS_PEMTRUSTEDCAS_CONTENT, null) != null) {
+            keys.add(ConfigConstants.LDAPS_PEMTRUSTEDCAS_FILEPATH);
+            keys.add(ConfigConstants.LDAPS_PEMCERT_FILEPATH);
+            keys.add(ConfigConstants.LDAPS_PEMKEY_FILEPATH);
+        } else {
+            keys.add(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_TRUSTSTORE_FILEPATH);
+            keys.add(SSLConfigConstants.SEARCHGUARD_SSL_TRANSPORT_KEYSTORE_FILEPATH);
+        }
+
+        final Map<String, Long> checksums = new LinkedHashMap<String, Long>();
+
+        for (final String key: keys) {
+
+            if (settings.get(key, null) == null) {
+                continue;
+            }
+
+            final String file = PemKeyReader.resolve(key, settings, configPath, false);
+
+            if (file == null) {
+                continue;
+            }
+
+            long checksum = -1;
+
+            try {
+                final CRC32 crc = new CRC32();
+                crc.update(Files.readAllBytes(Paths.get(file)));
+                checksum = crc.getValue();
+            } catch (final IOException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Unable to read {} due to {}", file, e.toString());
+                }
+            }
+
+            checksums.put(file, checksum);
+        }
+
+        return checksums;
+    }
+
+    private static BindRequest createServiceBindRequest(final Settings settings) {
+
+        final String bindDn = settings.get(ConfigConstants.LDAP_BIND_DN, null);
+        final String password = settings.get(ConfigConstants.LDAP_PASSWORD, null);
+
+        if (log.isDebugEnabled()) {
+            log.debug("bindDn {}, password {}", bindDn, password != null && password.length() > 0?"****":"<not set>");
+        }
+
+        if (bindDn != null && (password == null || password.length() == 0)) {
+            log.error("No password given for bind_dn {}. Will try to authenticate anonymously to ldap", bindDn);
+        }
+
+        final boolean enableClientAuth = settings.getAsBoolean(ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH, ConfigConstants.LDAPS_ENABLE_SSL_CLIENT_AUTH_DEFAULT);
+
+        if(log.isDebugEnabled()) {
+            if(enableClientAuth && bindDn == null) {
+                log.debug("Will perform External SASL bind because client cert authentication is enabled");
+            } else if(bindDn == null) {
+                log.debug("Will perform anonymous bind because to bind dn is given");
+            } else if(enableClientAuth && bindDn != null) {
+                log.debug("Will perform simple bind with bind dn because to bind dn is given and overrides client cert authentication");
+            } else if(!enableClientAuth && bindDn != null) {
+                log.debug("Will perform simple bind with bind dn");
+            }
+        }
+
+        if (bindDn != null && password != null && password.length() > 0) {
+            return new BindRequest(bindDn, new Credential(password));
+        }
+
+        return enableClientAuth?new BindRequest(new ExternalConfig()):new BindRequest();
+    }
+
+    private static <T> T privileged(final PrivilegedExceptionAction<T> action) throws Exception {
+
+        final SecurityManager sm = System.getSecurityManager();
+
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+
+        try {
+            return AccessController.doPrivileged(action);
+        } catch (PrivilegedActionException e) {
+            throw e.getException();
+        }
+    }
+
+    /**
+     * Counts the connections open (and idle in a pool) per host for the {@code least_outstanding} host selection
+     */
+    private final class TrackedConnection implements Connection, LdapConnectionPool.IdleAware {
+
+        private final String ldapHost;
+        private final Connection delegate;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicBoolean idle = new AtomicBoolean();
+
+        private TrackedConnection(final String ldapHost, final Connection delegate) {
+            this.ldapHost = ldapHost;
+            this.delegate = delegate;
+            health.onConnectionOpened(ldapHost);
+        }
+
+        @Override
+        public ConnectionConfig getConnectionConfig() {
+            return delegate.getConnectionConfig();
+        }
+
+        @Override
+        public Response<Void> open() throws LdapException {
+            throw new IllegalStateException("Connection is already open");
+        }
+
+        @Override
+        public Response<Void> open(final BindRequest request) throws LdapException {
+            throw new IllegalStateException("Connection is already open");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public ProviderConnection getProviderConnection() {
+            return delegate.getProviderConnection();
+        }
+
+        @Override
+        public void close() {
+            close(null);
+        }
+
+        @Override
+        public void close(final RequestControl[] controls) {
+            try {
+                delegate.close(controls);
+            } finally {
+                if (closed.compareAndSet(false, true)) {
+                    health.onConnectionClosed(ldapHost, idle.get());
+                }
+            }
+        }
+
+        @Override
+        public void setIdle(final boolean idle) {
+            if (!closed.get() && this.idle.compareAndSet(!idle, idle)) {
+                health.onConnectionIdle(ldapHost, idle);
+            }
+        }
+
+        @Override
+        public Response<Void> reopen() throws LdapException {
+            return delegate.reopen();
+        }
+
+        @Override
+        public Response<Void> reopen(final BindRequest request) throws LdapException {
+            return delegate.reopen(request);
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    private static final class ConnectionSetup {
+        private final Map<String, DefaultConnectionFactory> connectionFactories;
+        private final Map<String, Long> fileChecksums;
+        // copies of the connection factories with another response timeout
+        private final Map<Long, Map<String, DefaultConnectionFactory>> responseTimeoutConnectionFactories = new ConcurrentHashMap<Long, Map<String, DefaultConnectionFactory>>();
+
+        private ConnectionSetup(final Map<String, DefaultConnectionFactory> connectionFactories, final Map<String, Long> fileChecksums) {
+            this.connectionFactories = Collections.unmodifiableMap(connectionFactories);
+            this.fileChecksums = fileChecksums;
+        }
+
+        private Map<String, DefaultConnectionFactory> getConnectionFactories(final long responseTimeout) {
+            return responseTimeoutConnectionFactories.computeIfAbsent(responseTimeout, t -> {
+                final Map<String, DefaultConnectionFactory> result = new HashMap<String, DefaultConnectionFactory>();
+
+                for (final Map.Entry<String, DefaultConnectionFactory> connectionFactory: connectionFactories.entrySet()) {
+                    final ConnectionConfig config = ConnectionConfig.newConnectionConfig(connectionFactory.getValue().getConnectionConfig());
+                    config.setResponseTimeout(responseTimeout);
+
+                    final DefaultConnectionFactory connFactory = new DefaultConnectionFactory(config);
+                    connFactory.getProvider().getProviderConfig().setProperties(connectionFactory.getValue().getProvider().getProviderConfig().getProperties());
+                    result.put(connectionFactory.getKey(), connFactory);
+                }
+
+                return Collections.unmodifiableMap(result);
+            });
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.ldaptive.ReturnAttributes;
+
+import com.floragunn.dlic.auth.ldap.util.ConfigConstants;
+import com.floragunn.dlic.auth.ldap.util.FilterTemplate;
+import com.floragunn.dlic.auth.ldap.util.LdapHelper;
+import com.floragunn.dlic.auth.ldap.util.NameMatcher;
+
+/**
+ * The user and role search settings of the LDAP backends, read and validated once when a backend is created.
+ * Patterns are compiled and the attribute lists of the searches are computed here, so authenticating a user
+ * or resolving its roles does not touch {@link Settings} anymore. Invalid settings fail the construction
+ * of the backend with an {@link IllegalArgumentException}.
+ */
+final class LdapBackendConfig {
+
+    private static final Pattern MEMBER_ATTRIBUTE_PATTERN = Pattern.compile("\\(\\s*([A-Za-z][\\w\\-.;]*)\\s*=\\s*\\{[01]\\}\\s*\\)");
+    private static final Pattern USER_ATTRIBUTE_PATTERN = Pattern.compile("\\(\\s*([A-Za-z][\\w\\-.;]*)\\s*=\\s*\\{0\\}\\s*\\)");
+
+    // authentication
+    final String userBase;
+    // tells whether a user entry read by another backend comes from the same directory
+    final String userDirectory;
+    final FilterTemplate userSearch;
+    // the dn of a user, {0} is replaced by the (dn escaped) user name, null if users are searched
+    final FilterTemplate userDnTemplate;
+    final String usernameAttribute;
+    final String[] authcUserAttributes;
+    // attributes compared with {0} in the user search, e.g. uid for (uid={0}), and what a batched user search fetches
+    final List<String> userSearchAttributes;
+    final String[] batchedUserSearchAttributes;
+    final int existsBatchSize;
+    final boolean fakeLoginEnabled;
+    final String fakeLoginDn;
+    final String fakeLoginPassword;
+
+    // authorization
+    final boolean rolesearchEnabled;
+    final String roleBase;
+    final FilterTemplate roleSearch;
+    final List<String> roleSearchMemberAttributes;
+    final String roleName;
+    final String userRoleName;
+    final String userRoleAttribute;
+    final boolean resolveNestedRoles;
+    final NameMatcher skipUsers;
+    final NameMatcher nestedRoleFilter;
+    final int nestedRoleMaxDepth;
+    final int nestedRoleMaxCount;
+    final int nestedRoleBatchSize;
+    final int nestedRoleParallelism;
+    final int nestedRoleThreads;
+    final long userEntryMaxAge;
+    final LdapHelper.SearchLimits searchLimits;
+
+    // attributes fetched per kind of search, only what the role resolution reads
+    final String[] authzUserAttributes;
+    final String[] roleSearchAttributes;
+    final String[] roleLookupAttributes;
+    // a batched role search also reads the member attributes, they tell which of the searched roles a parent belongs to
+    final String[] batchedRoleSearchAttributes;
+
+    private LdapBackendConfig(final Settings settings) {
+        this.userBase = settings.get(ConfigConstants.LDAP_AUTHC_USERBASE, LDAPAuthenticationBackend.DEFAULT_USERBASE);
+        this.userDirectory = settings.getAsList(ConfigConstants.LDAP_HOSTS, Collections.singletonList("localhost")) + "|" + userBase;
+        this.userSearch = compileFilter(ConfigConstants.LDAP_AUTHC_USERSEARCH,
+                settings.get(ConfigConstants.LDAP_AUTHC_USERSEARCH, LDAPAuthenticationBackend.DEFAULT_USERSEARCH_PATTERN));
+        this.userDnTemplate = compileDnTemplate(settings.get(ConfigConstants.LDAP_AUTHC_USERDN_TEMPLATE, null));
+        this.usernameAttribute = settings.get(ConfigConstants.LDAP_AUTHC_USERNAME_ATTRIBUTE, null);
+        this.fakeLoginEnabled = settings.getAsBoolean(ConfigConstants.LDAP_FAKE_LOGIN_ENABLED, false);
+        this.fakeLoginDn = settings.get(ConfigConstants.LDAP_FAKE_LOGIN_DN, "CN=faketomakebindfail,DC=" + UUID.randomUUID().toString());
+        this.fakeLoginPassword = settings.get(ConfigConstants.LDAP_FAKE_LOGIN_PASSWORD, "fakeLoginPwd123");
+
+        this.rolesearchEnabled = settings.getAsBoolean(ConfigConstants.LDAP_AUTHZ_ROLESEARCH_ENABLED, true);
+        this.roleBase = settings.get(ConfigConstants.LDAP_AUTHZ_ROLEBASE, LDAPAuthorizationBackend.DEFAULT_ROLEBASE);
+
+        final String roleSearchPattern = settings.get(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, LDAPAuthorizationBackend.DEFAULT_ROLESEARCH);
+        // an unused role search is not validated, it may be a leftover
+        this.roleSearch = rolesearchEnabled ? compileFilter(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, roleSearchPattern) : FilterTemplate.compile(roleSearchPattern);
+        this.roleSearchMemberAttributes = Collections.unmodifiableList(getAttributes(MEMBER_ATTRIBUTE_PATTERN, roleSearchPattern));
+        this.roleName = settings.get(ConfigConstants.LDAP_AUTHZ_ROLENAME, LDAPAuthorizationBackend.DEFAULT_ROLENAME);
+        this.userRoleName = settings.get(ConfigConstants.LDAP_AUTHZ_USERROLENAME, LDAPAuthorizationBackend.DEFAULT_USERROLENAME);
+        this.userRoleAttribute = settings.get(ConfigConstants.LDAP_AUTHZ_USERROLEATTRIBUTE, null);
+        this.resolveNestedRoles = settings.getAsBoolean(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, false);
+        this.skipUsers = NameMatcher.compile(settings.getAsList(ConfigConstants.LDAP_AUTHZ_SKIP_USERS, Collections.emptyList()));
+        this.nestedRoleFilter = NameMatcher.compile(settings.getAsList(ConfigConstants.LDAP_AUTHZ_NESTEDROLEFILTER, Collections.emptyList()));
+        this.nestedRoleMaxDepth = settings.getAsInt(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_MAX_DEPTH, 0);
+        this.nestedRoleMaxCount = settings.getAsInt(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_MAX_COUNT, 0);
+        this.nestedRoleBatchSize = settings.getAsInt(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE, 0);
+        this.nestedRoleParallelism = settings.getAsInt(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_PARALLELISM, 1);
+        this.nestedRoleThreads = Math.max(1, settings.getAsInt(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_THREADS, ConfigConstants.LDAP_AUTHZ_NESTEDROLE_THREADS_DEFAULT));
+        this.userEntryMaxAge = settings.getAsLong(ConfigConstants.LDAP_AUTHZ_USER_ENTRY_MAX_AGE, ConfigConstants.LDAP_AUTHZ_USER_ENTRY_MAX_AGE_DEFAULT);
+        this.searchLimits = LdapHelper.SearchLimits.forSettings(settings);
+
+        this.authcUserAttributes = getAuthcUserAttributes(settings.getAsList(ConfigConstants.LDAP_AUTHC_USER_ATTRIBUTES, null));
+        this.userSearchAttributes = Collections.unmodifiableList(getAttributes(USER_ATTRIBUTE_PATTERN, userSearch.toString()));
+        this.existsBatchSize = settings.getAsInt(ConfigConstants.LDAP_AUTHC_EXISTS_BATCH_SIZE, ConfigConstants.LDAP_AUTHC_EXISTS_BATCH_SIZE_DEFAULT);
+
+        if (Arrays.equals(ReturnAttributes.ALL.value(), authcUserAttributes)) {
+            this.batchedUserSearchAttributes = authcUserAttributes;
+        } else {
+            final List<String> attributes = new ArrayList<String>(Arrays.asList(authcUserAttributes));
+            attributes.addAll(userSearchAttributes);
+            this.batchedUserSearchAttributes = LdapHelper.returnAttributes(attributes);
+        }
+        this.authzUserAttributes = LdapHelper.returnAttributes(Arrays.asList(userRoleName, userRoleAttribute));
+        // the role name is taken from the dn, the entries are only read again as known entries when resolving nested roles
+        this.roleSearchAttributes = resolveNestedRoles ? LdapHelper.returnAttributes(Collections.singletonList(userRoleName)) : ReturnAttributes.NONE.value();
+        this.roleLookupAttributes = LdapHelper.returnAttributes(Collections.singletonList(userRoleName));
+
+        final List<String> batchedRoleSearchAttributes = new ArrayList<String>(roleSearchMemberAttributes);
+        batchedRoleSearchAttributes.add(userRoleName);
+        this.batchedRoleSearchAttributes = LdapHelper.returnAttributes(batchedRoleSearchAttributes);
+
+        if (resolveNestedRoles && rolesearchEnabled && nestedRoleBatchSize > 1 && roleSearchMemberAttributes.isEmpty()) {
+            throw new IllegalArgumentException(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE + " > 1 needs a " + ConfigConstants.LDAP_AUTHZ_ROLESEARCH
+                    + " which compares a member attribute with {0} or {1}: " + roleSearchPattern);
+        }
+    }
+
+    static LdapBackendConfig forSettings(final Settings settings) {
+        return new LdapBackendConfig(settings);
+    }
+
+    /**
+     * All attributes (they are exported as {@code attr.ldap.*} user attributes) unless {@code user_attributes} is configured.
+     * In that case only these and the attributes needed for authentication and authorization are fetched.
+     */
+    private String[] getAuthcUserAttributes(final List<String> configured) {
+
+        if (configured == null) {
+            return ReturnAttributes.ALL.value();
+        }
+
+        final List<String> attributes = new ArrayList<String>(configured);
+        attributes.add(usernameAttribute);
+        attributes.add(userRoleName);
+        attributes.add(userRoleAttribute);
+        return LdapHelper.returnAttributes(attributes);
+    }
+
+    /**
+     * Names of the attributes compared with a placeholder, e.g. {@code uniqueMember} for {@code (uniqueMember={0})}
+     */
+    private static List<String> getAttributes(final Pattern attributePattern, final String search) {
+
+        final List<String> result = new ArrayList<String>(2);
+        final Matcher matcher = attributePattern.matcher(search);
+
+        while (matcher.find()) {
+            result.add(matcher.group(1));
+        }
+
+        return result;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the template has no {0} or is not a valid dn
+     */
+    private static FilterTemplate compileDnTemplate(final String template) {
+
+        if (template == null) {
+            return null;
+        }
+
+        final FilterTemplate result = FilterTemplate.compile(template);
+
+        if (!result.uses(0)) {
+            throw new IllegalArgumentException(ConfigConstants.LDAP_AUTHC_USERDN_TEMPLATE + " must contain {0}: " + template);
+        }
+
+        try {
+            new LdapName(result.render(0, "user"));
+        } catch (final InvalidNameException e) {
+            throw new IllegalArgumentException("Invalid " + ConfigConstants.LDAP_AUTHC_USERDN_TEMPLATE + ": " + template, e);
+        }
+
+        return result;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the filter is empty or its parentheses are not balanced
+     */
+    private static FilterTemplate compileFilter(final String key, final String filter) {
+
+        if (Strings.isNullOrEmpty(filter) || filter.trim().isEmpty()) {
+            throw new IllegalArgumentException(key + " must not be empty");
+        }
+
+        int open = 0;
+
+        for (int i = 0; i < filter.length(); i++) {
+            final char c = filter.charAt(i);
+
+            if (c == '\\') {
+                i++;
+            } else if (c == '(') {
+                open++;
+            } else if (c == ')' && --open < 0) {
+                break;
+            }
+        }
+
+        if (open != 0) {
+            throw new IllegalArgumentException("Unbalanced parentheses in " + key + ": " + filter);
+        }
+
+        return FilterTemplate.compile(filter);
+    }
+}
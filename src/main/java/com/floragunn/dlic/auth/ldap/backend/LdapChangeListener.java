@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.backend;
+
+import java.lang.ref.WeakReference;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.naming.NamingException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.ldaptive.Connection;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.ResultCode;
+
+import com.floragunn.dlic.auth.ldap.util.BackgroundTasks;
+import com.floragunn.dlic.auth.ldap.util.ConfigConstants;
+import com.floragunn.dlic.auth.ldap.util.LdapHelper;
+import com.floragunn.dlic.auth.ldap.util.Utils;
+
+/**
+ * Keeps a persistent search (draft-ietf-ldapext-psearch) open on each of some bases and passes every changed entry
+ * to its owner, which evicts what it cached about the entry. Each base has its own connection and a worker thread
+ * which is blocked in the search.
+ * <p>
+ * Backends have no close hook (see {@link BackgroundTasks}), so the owner is only weakly referenced. The connections
+ * come from the connection factory of the owner, with a response timeout of {@code change_listener.idle_restart} ms:
+ * after that long without changes the search is started again, or the listener stops if the owner is gone.
+ * <p>
+ * Changes are missed while no search is open, after a failure as well as in the short gap of an idle restart.
+ * So whenever a search is (re)started the owner drops everything it cached, which might have changed meanwhile.
+ */
+final class LdapChangeListener<T> {
+
+    protected static final Logger log = LogManager.getLogger(LdapChangeListener.class);
+
+    private final WeakReference<T> owner;
+    private final String name;
+    private final LDAPConnectionFactory connectionFactory;
+    private final long idleRestart;
+    private final String[] returnAttributes;
+    private final BiConsumer<T, LdapEntry> onChange;
+    private final Consumer<T> onChangesMissed;
+    private final long retryDelay;
+
+    private LdapChangeListener(final T owner, final String name, final LDAPConnectionFactory connectionFactory, final long idleRestart,
+            final String[] returnAttributes, final BiConsumer<T, LdapEntry> onChange, final Consumer<T> onChangesMissed, final long retryDelay) {
+        this.owner = new WeakReference<T>(owner);
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+        this.idleRestart = idleRestart;
+        this.returnAttributes = returnAttributes;
+        this.onChange = onChange;
+        this.onChangesMissed = onChangesMissed;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Listen for changes below {@code bases} if {@code change_listener.enabled} is true. {@code onChange} and
+     * {@code onChangesMissed} must not capture {@code owner}, otherwise it can not be garbage collected.
+     *
+     * @param attributes the attributes the changed entries should contain, besides the dn
+     */
+    static <T> void start(final T owner, final String name, final Settings settings, final LDAPConnectionFactory connectionFactory,
+            final Collection<String> bases, final Collection<String> attributes, final BiConsumer<T, LdapEntry> onChange, final Consumer<T> onChangesMissed) {
+
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_CHANGE_LISTENER_ENABLED, false)) {
+            return;
+        }
+
+        final long idleRestart = settings.getAsLong(ConfigConstants.LDAP_CHANGE_LISTENER_IDLE_RESTART, ConfigConstants.LDAP_CHANGE_LISTENER_IDLE_RESTART_DEFAULT);
+        final long retryDelay = settings.getAsLong(ConfigConstants.LDAP_CHANGE_LISTENER_RETRY_DELAY, ConfigConstants.LDAP_CHANGE_LISTENER_RETRY_DELAY_DEFAULT);
+        final LdapChangeListener<T> listener = new LdapChangeListener<T>(owner, name, connectionFactory, idleRestart,
+                LdapHelper.returnAttributes(attributes), onChange, onChangesMissed, retryDelay);
+
+        for (final String base: new LinkedHashSet<String>(bases)) {
+            BackgroundTasks.workers().execute(() -> listener.listen(base));
+        }
+    }
+
+    private void listen(final String base) {
+
+        boolean failed = false;
+
+        while (owner.get() != null) {
+
+            Connection connection = null;
+            // when the search was started or last returned a change, tells an idle search from a failed one
+            final long[] lastResponse = new long[] { System.nanoTime() };
+
+            try {
+                // the response timeout ends a search without changes, then the owner is checked
+                connection = connectionFactory.getConnection(idleRestart);
+
+                // also after an idle restart, a change between the end of the last search and the start of this one is not reported
+                changesMissed(failed);
+                failed = false;
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Listen for changes below '{}' ({})", base, name);
+                }
+
+                lastResponse[0] = System.nanoTime();
+                LdapHelper.persistentSearch(connection, base, entry -> {
+                    lastResponse[0] = System.nanoTime();
+                    changed(entry);
+                }, returnAttributes);
+            } catch (final Exception e) {
+
+                if (isResponseTimeout(e, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastResponse[0]))) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("No changes below '{}' ({}), start the search again", base, name);
+                    }
+                    continue;
+                }
+
+                failed = true;
+                log.warn("Unable to listen for changes below '{}' ({}) due to {}, retry in {} ms", base, name, e.toString(), retryDelay);
+                if (log.isDebugEnabled()) {
+                    log.debug("Unable to listen for changes due to ", e);
+                }
+
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                Utils.unbindAndCloseSilently(connection);
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Stopped listening for changes below '{}' ({})", base, name);
+        }
+    }
+
+    private void changed(final LdapEntry entry) {
+
+        final T o = owner.get();
+
+        if (o == null) {
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Entry {} changed ({})", entry.getDn(), name);
+        }
+
+        try {
+            onChange.accept(o, entry);
+        } catch (final RuntimeException e) {
+            log.warn("Unable to evict the cached data of {} ({}) due to {}", entry.getDn(), name, e.toString());
+        }
+    }
+
+    private void changesMissed(final boolean failed) {
+
+        final T o = owner.get();
+
+        if (o == null) {
+            return;
+        }
+
+        if (failed) {
+            log.info("Changes might have been missed ({}), drop all cached data", name);
+        } else if (log.isDebugEnabled()) {
+            log.debug("Search (re)started ({}), drop all cached data", name);
+        }
+
+        onChangesMissed.accept(o);
+    }
+
+    /**
+     * JNDI reports a response timeout as a plain {@link NamingException}, like a connection closed by the server. Only
+     * the timeout comes after the search waited {@code idle_restart} ms, a closed connection is noticed before.
+     */
+    private boolean isResponseTimeout(Throwable e, final long waited) {
+
+        while (e != null) {
+            if (e instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (e instanceof LdapException && ((LdapException) e).getResultCode() == ResultCode.TIME_LIMIT_EXCEEDED) {
+                return true;
+            }
+            if (e.getClass() == NamingException.class && waited >= idleRestart) {
+                return true;
+            }
+            e = e.getCause();
+        }
+
+        return false;
+    }
+}
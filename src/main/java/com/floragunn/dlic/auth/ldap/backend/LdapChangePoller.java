@@ -0,0 +1,349 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.backend;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.ldaptive.Connection;
+import org.ldaptive.LdapAttribute;
+import org.ldaptive.LdapEntry;
+import org.ldaptive.SearchScope;
+import org.ldaptive.io.GeneralizedTimeValueTranscoder;
+
+import com.floragunn.dlic.auth.ldap.util.BackgroundTasks;
+import com.floragunn.dlic.auth.ldap.util.ConfigConstants;
+import com.floragunn.dlic.auth.ldap.util.LdapHelper;
+import com.floragunn.dlic.auth.ldap.util.Utils;
+
+/**
+ * Polls some bases for entries changed since the last poll and passes them to its owner, which evicts what it
+ * cached about them. For directories without persistent search (see {@link LdapChangeListener}).
+ * <p>
+ * Changes are found by a watermark, the highest {@code modifyTimestamp}/{@code createTimestamp} (converted to UTC,
+ * compared with second precision) or {@code uSNChanged} seen so far. A failed poll is repeated with the same watermark,
+ * so no change is missed. Deleted entries are not found, they stay cached until their ttl is over.
+ * <p>
+ * Neither usns nor timestamps (modifyTimestamp is not replicated by Active Directory) can be compared between servers.
+ * So the poller keeps its own connection open and polls the same server as long as it can. The watermark is taken from
+ * that server: its {@code highestCommittedUSN}, its {@code currentTime} or else the highest timestamp below the bases.
+ * When the poller has to connect again and gets another server (host, {@code dsServiceName} or {@code invocationId}
+ * differ), it starts over with a watermark of the new server and the owner drops everything it cached.
+ * <p>
+ * The owner has to keep a reference to the poller, polling stops once the poller was garbage collected.
+ */
+final class LdapChangePoller {
+
+    protected static final Logger log = LogManager.getLogger(LdapChangePoller.class);
+
+    static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+    static final String USN_CHANGED = "uSNChanged";
+    private static final String CREATE_TIMESTAMP = "createTimestamp";
+    private static final String HIGHEST_COMMITTED_USN = "highestCommittedUSN";
+    private static final String CURRENT_TIME = "currentTime";
+    private static final String DS_SERVICE_NAME = "dsServiceName";
+    private static final String INVOCATION_ID = "invocationId";
+    private static final GeneralizedTimeValueTranscoder GENERALIZED_TIME = new GeneralizedTimeValueTranscoder();
+
+    private final String name;
+    private final LDAPConnectionFactory connectionFactory;
+    private final Collection<String> bases;
+    private final String[] returnAttributes;
+    private final Consumer<LdapEntry> onChange;
+    private final Runnable onChangesMissed;
+    private final boolean usn;
+    private final long interval;
+
+    // only touched by the (single) running poll
+    private Connection connection;
+    // the server the watermark was taken from
+    private String server;
+    private String watermark;
+    // entries already reported with a value equal to the watermark, the next poll finds them again
+    private Set<String> seenAtWatermark = new HashSet<String>();
+
+    private LdapChangePoller(final String name, final LDAPConnectionFactory connectionFactory, final Collection<String> bases,
+            final String[] returnAttributes, final Consumer<LdapEntry> onChange, final Runnable onChangesMissed, final boolean usn, final long interval) {
+        this.name = name;
+        this.connectionFactory = connectionFactory;
+        this.bases = bases;
+        this.returnAttributes = returnAttributes;
+        this.onChange = onChange;
+        this.onChangesMissed = onChangesMissed;
+        this.usn = usn;
+        this.interval = interval;
+    }
+
+    /**
+     * @param attributes the attributes the changed entries should contain, besides the dn
+     * @param onChangesMissed called when the poller had to switch to another server
+     * @return the poller or null if {@code change_poller.enabled} is false
+     * @throws IllegalArgumentException if {@code change_poller.attribute} is not supported
+     */
+    static LdapChangePoller start(final String name, final Settings settings, final LDAPConnectionFactory connectionFactory,
+            final Collection<String> bases, final Collection<String> attributes, final Consumer<LdapEntry> onChange, final Runnable onChangesMissed) {
+
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_CHANGE_POLLER_ENABLED, false)) {
+            return null;
+        }
+
+        final String attribute = settings.get(ConfigConstants.LDAP_CHANGE_POLLER_ATTRIBUTE, MODIFY_TIMESTAMP);
+        final boolean usn;
+
+        if (MODIFY_TIMESTAMP.equalsIgnoreCase(attribute)) {
+            usn = false;
+        } else if (USN_CHANGED.equalsIgnoreCase(attribute)) {
+            usn = true;
+        } else {
+            throw new IllegalArgumentException("Unknown " + ConfigConstants.LDAP_CHANGE_POLLER_ATTRIBUTE + ": " + attribute);
+        }
+
+        final long interval = settings.getAsLong(ConfigConstants.LDAP_CHANGE_POLLER_INTERVAL, ConfigConstants.LDAP_CHANGE_POLLER_INTERVAL_DEFAULT);
+
+        final List<String> returnAttributes = new ArrayList<String>(attributes);
+        if (usn) {
+            returnAttributes.add(USN_CHANGED);
+        } else {
+            returnAttributes.add(MODIFY_TIMESTAMP);
+            returnAttributes.add(CREATE_TIMESTAMP);
+        }
+
+        final LdapChangePoller poller = new LdapChangePoller(name, connectionFactory, new LinkedHashSet<String>(bases),
+                LdapHelper.returnAttributes(returnAttributes), onChange, onChangesMissed, usn, interval);
+
+        BackgroundTasks.scheduleWithFixedDelay(poller, LdapChangePoller::poll, 0, interval, TimeUnit.MILLISECONDS);
+        return poller;
+    }
+
+    private synchronized void poll() {
+
+        try {
+            if (connection == null || !connection.isOpen()) {
+                connect();
+            }
+
+            if (watermark == null) {
+                watermark = initialWatermark(connection);
+                seenAtWatermark = new HashSet<String>();
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Poll for changes since {} ({})", watermark, name);
+                }
+                return;
+            }
+
+            final String filter = usn ? "(" + USN_CHANGED + ">=" + watermark + ")"
+                    : "(|(" + MODIFY_TIMESTAMP + ">=" + watermark + ")(" + CREATE_TIMESTAMP + ">=" + watermark + "))";
+
+            String highest = watermark;
+            final Set<String> seenAtHighest = new HashSet<String>(seenAtWatermark);
+            int changes = 0;
+
+            for (final String base: bases) {
+                final List<LdapEntry> entries = new ArrayList<LdapEntry>();
+                LdapHelper.search(connection, base, filter, SearchScope.SUBTREE, LdapHelper.SearchLimits.NONE, entries::add, returnAttributes);
+
+                for (final LdapEntry entry: entries) {
+                    final String value = getValue(entry);
+
+                    if (value == null || (compare(value, watermark) == 0 && seenAtWatermark.contains(entry.getDn()))) {
+                        continue;
+                    }
+
+                    changes++;
+                    onChange.accept(entry);
+
+                    final int c = compare(value, highest);
+
+                    if (c > 0) {
+                        highest = value;
+                        seenAtHighest.clear();
+                    }
+                    if (c >= 0) {
+                        seenAtHighest.add(entry.getDn());
+                    }
+                }
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("{} changes since {}, next poll since {} ({})", changes, watermark, highest, name);
+            }
+
+            watermark = highest;
+            seenAtWatermark = seenAtHighest;
+        } catch (final Exception e) {
+            log.warn("Unable to poll for changes ({}) due to {}, retry in {} ms", name, e.toString(), interval);
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to poll for changes due to ", e);
+            }
+            // connect again, maybe to another server
+            Utils.unbindAndCloseSilently(connection);
+            connection = null;
+        }
+    }
+
+    /**
+     * Open the connection polled on, start over if it goes to another server than before
+     */
+    private void connect() throws Exception {
+
+        Utils.unbindAndCloseSilently(connection);
+        connection = null;
+        connection = connectionFactory.getConnection();
+
+        final String identity = getServerIdentity(connection);
+
+        if (identity.equals(server)) {
+            return;
+        }
+
+        if (server != null) {
+            log.info("Poll {} instead of {} now ({}), drop all cached data", identity, server, name);
+            onChangesMissed.run();
+        }
+
+        server = identity;
+        watermark = null;
+    }
+
+    /**
+     * The url of the host, and for Active Directory the domain controller and the identity of its database
+     */
+    private static String getServerIdentity(final Connection connection) throws Exception {
+
+        final StringBuilder identity = new StringBuilder(connection.getConnectionConfig().getLdapUrl());
+        final LdapEntry rootDse = LdapHelper.lookup(connection, "", DS_SERVICE_NAME);
+        final LdapAttribute dsServiceName = rootDse == null ? null : rootDse.getAttribute(DS_SERVICE_NAME);
+
+        if (dsServiceName != null) {
+            identity.append(' ').append(dsServiceName.getStringValue());
+
+            // changes when the database of the domain controller is restored, its usns start over
+            final LdapEntry settings = LdapHelper.lookup(connection, dsServiceName.getStringValue(), INVOCATION_ID);
+            final LdapAttribute invocationId = settings == null ? null : settings.getAttribute(INVOCATION_ID);
+
+            if (invocationId != null) {
+                identity.append(' ').append(invocationId.getStringValue());
+            }
+        }
+
+        return identity.toString();
+    }
+
+    /**
+     * The current usn or time of the server. Without a {@code currentTime} in the root dse the highest timestamp of
+     * the entries below the bases, which searches them all once.
+     */
+    private String initialWatermark(final Connection connection) throws Exception {
+
+        if (!usn) {
+            final LdapEntry rootDse = LdapHelper.lookup(connection, "", CURRENT_TIME);
+            final String currentTime = rootDse == null ? null : getTimestamp(rootDse, CURRENT_TIME);
+
+            if (currentTime != null) {
+                return currentTime;
+            }
+
+            String highest = "19700101000000Z";
+
+            for (final String base: bases) {
+                final List<LdapEntry> entries = new ArrayList<LdapEntry>();
+                LdapHelper.search(connection, base, "(objectClass=*)", SearchScope.SUBTREE, LdapHelper.SearchLimits.NONE, entries::add,
+                        MODIFY_TIMESTAMP, CREATE_TIMESTAMP);
+
+                for (final LdapEntry entry: entries) {
+                    final String value = getValue(entry);
+
+                    if (value != null && compare(value, highest) > 0) {
+                        highest = value;
+                    }
+                }
+            }
+
+            return highest;
+        }
+
+        final LdapEntry rootDse = LdapHelper.lookup(connection, "", HIGHEST_COMMITTED_USN);
+        final LdapAttribute highest = rootDse == null ? null : rootDse.getAttribute(HIGHEST_COMMITTED_USN);
+
+        if (highest == null) {
+            throw new IllegalStateException("No " + HIGHEST_COMMITTED_USN + " in the root dse");
+        }
+
+        return highest.getStringValue();
+    }
+
+    private String getValue(final LdapEntry entry) {
+
+        if (usn) {
+            final LdapAttribute value = entry.getAttribute(USN_CHANGED);
+            return value == null ? null : value.getStringValue();
+        }
+
+        final String modified = getTimestamp(entry, MODIFY_TIMESTAMP);
+        final String created = getTimestamp(entry, CREATE_TIMESTAMP);
+
+        if (modified == null || (created != null && compare(created, modified) > 0)) {
+            return created;
+        }
+
+        return modified;
+    }
+
+    /**
+     * The generalized time value in UTC reduced to seconds, e.g. 20171017055655Z for 20171017075655.123+0200
+     */
+    private static String getTimestamp(final LdapEntry entry, final String attributeName) {
+
+        final LdapAttribute attribute = entry.getAttribute(attributeName);
+        final String value = attribute == null ? null : attribute.getStringValue();
+
+        if (value == null) {
+            return null;
+        }
+
+        final Calendar time;
+
+        try {
+            time = GENERALIZED_TIME.decodeStringValue(value);
+        } catch (final IllegalArgumentException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Ignore {} of {}, not a generalized time: {}", attributeName, entry.getDn(), value);
+            }
+            return null;
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(time.getTime());
+    }
+
+    private int compare(final String a, final String b) {
+        return usn ? Long.compare(Long.parseLong(a), Long.parseLong(b)) : a.compareTo(b);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.ldaptive.LdapEntry;
+
+/**
+ * Caches successful authentications by username.
+ * <p>
+ * Only a salted PBKDF2 digest of the password is kept, never the password itself. A cached entry
+ * is used only if the presented password matches the digest, otherwise the caller has to ask the
+ * ldap server again (the password might have been changed in the meantime).
+ */
+public final class AuthenticationCache {
+
+    private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 256;
+
+    protected static final Logger log = LogManager.getLogger(AuthenticationCache.class);
+
+    private final SecureRandom random = new SecureRandom();
+    private final Cache<String, Authentication> cache;
+    private final int iterations;
+
+    public AuthenticationCache(final Settings settings) {
+        final long ttl = settings.getAsLong(ConfigConstants.LDAP_AUTHC_CACHE_TTL, ConfigConstants.LDAP_AUTHC_CACHE_TTL_DEFAULT);
+        final long maxSize = settings.getAsLong(ConfigConstants.LDAP_AUTHC_CACHE_MAX_SIZE, ConfigConstants.LDAP_AUTHC_CACHE_MAX_SIZE_DEFAULT);
+        this.iterations = Math.max(1, settings.getAsInt(ConfigConstants.LDAP_AUTHC_CACHE_HASH_ITERATIONS, ConfigConstants.LDAP_AUTHC_CACHE_HASH_ITERATIONS_DEFAULT));
+
+        this.cache = CacheBuilder.<String, Authentication>builder()
+                .setExpireAfterWrite(TimeValue.timeValueMillis(ttl))
+                .setMaximumWeight(maxSize)
+                .build();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Authentication cache: ttl {} ms, max size {}, {} hash iterations", ttl, maxSize, iterations);
+        }
+    }
+
+    /**
+     * @return the cached authentication if the password matches, null otherwise
+     */
+    public Authentication get(final String username, final byte[] password) {
+
+        final Authentication cached = cache.get(username);
+
+        if (cached == null) {
+            return null;
+        }
+
+        if (MessageDigest.isEqual(cached.hash, hash(password, cached.salt))) {
+            return cached;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Password for {} does not match the cached one", username);
+        }
+
+        return null;
+    }
+
+    public void put(final String username, final byte[] password, final String name, final LdapEntry entry) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        cache.put(username, new Authentication(username, name, entry, System.currentTimeMillis(), salt, hash(password, salt)));
+    }
+
+    public void invalidate(final String username) {
+        cache.invalidate(username);
+    }
+
+    /**
+     * Remove the cached authentications of the user with this dn
+     */
+    public void invalidateEntry(final LdapName dn) {
+
+        final List<String> usernames = new ArrayList<String>();
+
+        for (final Authentication cached: cache.values()) {
+            if (cached.entry != null && dn.equals(toLdapName(cached.entry.getDn()))) {
+                usernames.add(cached.username);
+            }
+        }
+
+        for (final String username: usernames) {
+            cache.invalidate(username);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public int size() {
+        return cache.count();
+    }
+
+    /**
+     * Hit, miss and eviction counters. A hit with a mismatching password still counts as hit.
+     */
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    private byte[] hash(final byte[] password, final byte[] salt) {
+
+        final CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(password));
+        final char[] passwordChars = new char[chars.remaining()];
+        chars.get(passwordChars);
+        Arrays.fill(chars.array(), '\0');
+
+        final PBEKeySpec spec = new PBEKeySpec(passwordChars, salt, iterations, HASH_LENGTH);
+
+        try {
+            return SecretKeyFactory.getInstance(HASH_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to hash password with " + HASH_ALGORITHM, e);
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(passwordChars, '\0');
+        }
+    }
+
+    private static LdapName toLdapName(final String dn) {
+        try {
+            return new LdapName(dn);
+        } catch (final InvalidNameException e) {
+            return null;
+        }
+    }
+
+    public static final class Authentication {
+        private final String username;
+        private final String name;
+        private final LdapEntry entry;
+        private final long entryTimestamp;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private Authentication(final String username, final String name, final LdapEntry entry, final long entryTimestamp, final byte[] salt,
+                final byte[] hash) {
+            this.username = username;
+            this.name = name;
+            this.entry = entry;
+            this.entryTimestamp = entryTimestamp;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LdapEntry getEntry() {
+            return entry;
+        }
+
+        /**
+         * @return when the entry was cached (ms since the epoch)
+         */
+        public long getEntryTimestamp() {
+            return entryTimestamp;
+        }
+    }
+}
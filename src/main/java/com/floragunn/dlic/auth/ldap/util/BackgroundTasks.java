@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.SpecialPermission;
+
+/**
+ * Shared daemon scheduler for housekeeping work of the LDAP backends (pool eviction, probes, refreshes).
+ * <p>
+ * Backends are recreated by Search Guard on every configuration change and have no close hook, so tasks
+ * only hold a weak reference to their owner and cancel themselves once the owner was garbage collected.
+ */
+public final class BackgroundTasks {
+
+    private static final Logger log = LogManager.getLogger(BackgroundTasks.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private BackgroundTasks() {
+
+    }
+
+    private static class ExecutorHolder {
+        static final ScheduledExecutorService EXECUTOR = createExecutor();
+    }
+
+    private static class WorkersHolder {
+        static final ExecutorService WORKERS = createWorkers();
+    }
+
+    public static ScheduledExecutorService executor() {
+        return ExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Unbounded pool of daemon worker threads for short lived, blocking ldap operations.
+     * Callers are responsible for bounding their own parallelism.
+     */
+    public static ExecutorService workers() {
+        return WorkersHolder.WORKERS;
+    }
+
+    /**
+     * Pool of at most {@code threads} daemon threads without a queue. If all threads are busy, tasks run
+     * in the submitting thread. Idle threads terminate, so an unused pool does not keep any thread alive.
+     */
+    public static ExecutorService newBoundedWorkers(final String name, final int threads) {
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new DaemonThreadFactory("sg-ldap-" + name + "-"), new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Run {@code task} with a fixed delay for as long as {@code owner} is strongly reachable from somewhere else.
+     */
+    public static <T> ScheduledFuture<?> scheduleWithFixedDelay(final T owner, final Consumer<T> task, final long initialDelay, final long delay, final TimeUnit unit) {
+
+        final WeakReference<T> ownerRef = new WeakReference<T>(owner);
+        final AtomicReference<ScheduledFuture<?>> self = new AtomicReference<ScheduledFuture<?>>();
+
+        final ScheduledFuture<?> future = executor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final T o = ownerRef.get();
+
+                if (o == null) {
+                    final ScheduledFuture<?> f = self.get();
+                    if (f != null) {
+                        f.cancel(false);
+                    }
+                    return;
+                }
+
+                try {
+                    task.accept(o);
+                } catch (final Throwable e) {
+                    log.warn("Background task for {} failed due to {}", o.getClass().getSimpleName(), e.toString());
+                    if (log.isDebugEnabled()) {
+                        log.debug("Background task failed due to ", e);
+                    }
+                }
+            }
+        }, initialDelay, delay, unit);
+
+        self.set(future);
+        return future;
+    }
+
+    private static ScheduledExecutorService createExecutor() {
+
+        final SecurityManager sm = System.getSecurityManager();
+
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+
+        return AccessController.doPrivileged(new PrivilegedAction<ScheduledExecutorService>() {
+            @Override
+            public ScheduledExecutorService run() {
+                return Executors.newScheduledThreadPool(2, new DaemonThreadFactory("sg-ldap-background-"));
+            }
+        });
+    }
+
+    private static ExecutorService createWorkers() {
+
+        final SecurityManager sm = System.getSecurityManager();
+
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+
+        return AccessController.doPrivileged(new PrivilegedAction<ExecutorService>() {
+            @Override
+            public ExecutorService run() {
+                return Executors.newCachedThreadPool(new DaemonThreadFactory("sg-ldap-worker-"));
+            }
+        });
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private DaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            // threads are created lazily from the calling context
+            return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+                @Override
+                public Thread run() {
+                    final Thread t = new Thread(r, prefix + THREAD_COUNTER.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+}
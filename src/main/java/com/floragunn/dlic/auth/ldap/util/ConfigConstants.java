@@ -19,6 +19,31 @@ public final class ConfigConstants {
     public static final String LDAP_AUTHC_USERBASE = "userbase";
     public static final String LDAP_AUTHC_USERNAME_ATTRIBUTE = "username_attribute";
     public static final String LDAP_AUTHC_USERSEARCH = "usersearch";
+    public static final String LDAP_AUTHC_USERDN_TEMPLATE = "userdn_template"; //e.g. uid={0},ou=people,o=TEST, bind as this dn without a user search
+    public static final String LDAP_AUTHC_EXISTS_BATCH_SIZE = "exists_batch_size"; //user names per OR filtered user search when checking many users, <= 1 searches one by one
+    public static final int LDAP_AUTHC_EXISTS_BATCH_SIZE_DEFAULT = 50;
+    public static final String LDAP_AUTHC_USER_ATTRIBUTES = "user_attributes"; //attributes fetched and exported with the user entry, all if not set
+
+    //authentication cache
+    public static final String LDAP_AUTHC_CACHE_ENABLED = "authc_cache.enabled";
+    public static final String LDAP_AUTHC_CACHE_TTL = "authc_cache.ttl"; //ms
+    public static final long LDAP_AUTHC_CACHE_TTL_DEFAULT = 5 * 60 * 1000L;
+    public static final String LDAP_AUTHC_CACHE_MAX_SIZE = "authc_cache.max_size";
+    public static final long LDAP_AUTHC_CACHE_MAX_SIZE_DEFAULT = 10000L;
+    public static final String LDAP_AUTHC_CACHE_HASH_ITERATIONS = "authc_cache.hash_iterations"; //PBKDF2 iterations
+    public static final int LDAP_AUTHC_CACHE_HASH_ITERATIONS_DEFAULT = 4096;
+
+    //unknown (or ambiguous) user names, answered without a search
+    public static final String LDAP_AUTHC_NEGATIVE_CACHE_ENABLED = "negative_cache.enabled";
+    public static final String LDAP_AUTHC_NEGATIVE_CACHE_TTL = "negative_cache.ttl"; //ms
+    public static final long LDAP_AUTHC_NEGATIVE_CACHE_TTL_DEFAULT = 60 * 1000L;
+    public static final String LDAP_AUTHC_NEGATIVE_CACHE_MAX_SIZE = "negative_cache.max_size";
+    public static final long LDAP_AUTHC_NEGATIVE_CACHE_MAX_SIZE_DEFAULT = 10000L;
+
+    //concurrent authentications with the same credentials wait for the first one
+    public static final String LDAP_AUTHC_COALESCING_ENABLED = "authc_coalescing.enabled";
+    public static final String LDAP_AUTHC_COALESCING_MAX_WAIT = "authc_coalescing.max_wait"; //ms, then authenticate on its own
+    public static final long LDAP_AUTHC_COALESCING_MAX_WAIT_DEFAULT = 10 * 1000L;
     
     public static final String LDAP_AUTHZ_RESOLVE_NESTED_ROLES = "resolve_nested_roles";
     public static final String LDAP_AUTHZ_ROLEBASE = "rolebase";
@@ -29,6 +54,43 @@ public final class ConfigConstants {
     public static final String LDAP_AUTHZ_SKIP_USERS = "skip_users";
     public static final String LDAP_AUTHZ_ROLESEARCH_ENABLED = "rolesearch_enabled";
     public static final String LDAP_AUTHZ_NESTEDROLEFILTER = "nested_role_filter";
+    public static final String LDAP_AUTHZ_NESTEDROLE_MAX_DEPTH = "nested_role_max_depth"; //levels above the direct roles, <= 0 means no limit
+    public static final String LDAP_AUTHZ_NESTEDROLE_MAX_COUNT = "nested_role_max_count"; //total roles, <= 0 means no limit
+    public static final String LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE = "nested_role_batch_size"; //roles per OR filtered role search, <= 1 searches role by role
+    public static final String LDAP_AUTHZ_NESTEDROLE_PARALLELISM = "nested_role_parallelism"; //concurrent branches per request, <= 1 resolves serially
+    public static final String LDAP_AUTHZ_NESTEDROLE_THREADS = "nested_role_threads"; //threads per backend for parallel resolution
+    public static final int LDAP_AUTHZ_NESTEDROLE_THREADS_DEFAULT = 8;
+    public static final String LDAP_AUTHZ_USER_ENTRY_MAX_AGE = "user_entry_max_age"; //ms, older entries of users authenticated by ldap are read again, < 0 means no limit
+    public static final long LDAP_AUTHZ_USER_ENTRY_MAX_AGE_DEFAULT = 60000L;
+
+    //role cache
+    public static final String LDAP_AUTHZ_CACHE_ENABLED = "authz_cache.enabled";
+    public static final String LDAP_AUTHZ_CACHE_TTL = "authz_cache.ttl"; //ms
+    public static final long LDAP_AUTHZ_CACHE_TTL_DEFAULT = 5 * 60 * 1000L;
+    public static final String LDAP_AUTHZ_CACHE_MAX_SIZE = "authz_cache.max_size";
+    public static final long LDAP_AUTHZ_CACHE_MAX_SIZE_DEFAULT = 10000L;
+    public static final String LDAP_AUTHZ_CACHE_REFRESH_AFTER = "authz_cache.refresh_after"; //ms, <= 0 to disable refresh-ahead
+    public static final long LDAP_AUTHZ_CACHE_REFRESH_AFTER_DEFAULT = -1L;
+
+    //nested group cache (group dn -> direct parent groups), shared between users
+    public static final String LDAP_AUTHZ_NESTED_CACHE_ENABLED = "nested_cache.enabled";
+    public static final String LDAP_AUTHZ_NESTED_CACHE_TTL = "nested_cache.ttl"; //ms
+    public static final long LDAP_AUTHZ_NESTED_CACHE_TTL_DEFAULT = 10 * 60 * 1000L;
+    public static final String LDAP_AUTHZ_NESTED_CACHE_MAX_SIZE = "nested_cache.max_size";
+    public static final long LDAP_AUTHZ_NESTED_CACHE_MAX_SIZE_DEFAULT = 10000L;
+
+    //cache invalidation by persistent search on the user and role base
+    public static final String LDAP_CHANGE_LISTENER_ENABLED = "change_listener.enabled";
+    public static final String LDAP_CHANGE_LISTENER_IDLE_RESTART = "change_listener.idle_restart"; //ms without changes until the search is started again
+    public static final long LDAP_CHANGE_LISTENER_IDLE_RESTART_DEFAULT = 5 * 60 * 1000L;
+    public static final String LDAP_CHANGE_LISTENER_RETRY_DELAY = "change_listener.retry_delay"; //ms
+    public static final long LDAP_CHANGE_LISTENER_RETRY_DELAY_DEFAULT = 10 * 1000L;
+
+    //cache invalidation by polling the user and role base for changed entries
+    public static final String LDAP_CHANGE_POLLER_ENABLED = "change_poller.enabled";
+    public static final String LDAP_CHANGE_POLLER_INTERVAL = "change_poller.interval"; //ms
+    public static final long LDAP_CHANGE_POLLER_INTERVAL_DEFAULT = 60 * 1000L;
+    public static final String LDAP_CHANGE_POLLER_ATTRIBUTE = "change_poller.attribute"; //modifyTimestamp (default) or uSNChanged
     
     public static final String LDAP_HOSTS = "hosts";
     public static final String LDAP_BIND_DN = "bind_dn";
@@ -39,7 +101,49 @@ public final class ConfigConstants {
     
     public static final String LDAP_CONNECT_TIMEOUT = "connect_timeout"; //com.sun.jndi.ldap.connect.timeout
     public static final String LDAP_RESPONSE_TIMEOUT = "response_timeout"; //com.sun.jndi.ldap.read.timeout
-    
+
+    //role searches
+    public static final String LDAP_SEARCH_PAGE_SIZE = "search.page_size"; //simple paged results, <= 0 disables paging
+    public static final String LDAP_SEARCH_SIZE_LIMIT = "search.size_limit"; //max entries per search, <= 0 means no limit
+    public static final String LDAP_SEARCH_TIME_LIMIT = "search.time_limit"; //ms, <= 0 means no limit
+
+    public static final String LDAP_CONNECT_MODE = "connect_mode";
+    public static final String LDAP_CONNECT_MODE_SEQUENTIAL = "sequential"; //try hosts one after another
+    public static final String LDAP_CONNECT_MODE_RACE = "race"; //connect to several hosts in parallel, first bound connection wins
+    public static final String LDAP_RACE_PARALLELISM = "race.parallelism";
+    public static final int LDAP_RACE_PARALLELISM_DEFAULT = 2;
+    public static final String LDAP_RACE_STAGGER = "race.stagger"; //ms
+    public static final long LDAP_RACE_STAGGER_DEFAULT = 250L;
+
+    public static final String LDAP_HOST_SELECTION = "host_selection";
+    public static final String LDAP_HOST_SELECTION_ORDERED = "ordered"; //configured order, fail over only
+    public static final String LDAP_HOST_SELECTION_ROUND_ROBIN = "round_robin";
+    public static final String LDAP_HOST_SELECTION_RANDOM = "random";
+    public static final String LDAP_HOST_SELECTION_LEAST_OUTSTANDING = "least_outstanding"; //fewest connections in use, idle pooled connections do not count
+    public static final String LDAP_HOST_SELECTION_LATENCY = "latency"; //weighted by moving average connect latency
+
+    //host health tracking (circuit breaker)
+    public static final String LDAP_HEALTH_ENABLED = "health.enabled"; //default false, every backend probes its own hosts
+    public static final String LDAP_HEALTH_FAILURE_THRESHOLD = "health.failure_threshold"; //consecutive failures until a host is skipped
+    public static final int LDAP_HEALTH_FAILURE_THRESHOLD_DEFAULT = 2;
+    public static final String LDAP_HEALTH_PROBE_INTERVAL = "health.probe_interval"; //ms
+    public static final long LDAP_HEALTH_PROBE_INTERVAL_DEFAULT = 10 * 1000L;
+
+    //connection pool
+    public static final String LDAP_POOL_ENABLED = "pool.enabled";
+    public static final String LDAP_POOL_SHARED = "pool.shared"; //one pool for all backends with the same connection settings, e.g. authc and authz
+    public static final String LDAP_POOL_MIN_SIZE = "pool.min_size";
+    public static final int LDAP_POOL_MIN_SIZE_DEFAULT = 3;
+    public static final String LDAP_POOL_MAX_SIZE = "pool.max_size";
+    public static final int LDAP_POOL_MAX_SIZE_DEFAULT = 10;
+    public static final String LDAP_POOL_BORROW_TIMEOUT = "pool.borrow_timeout"; //ms
+    public static final long LDAP_POOL_BORROW_TIMEOUT_DEFAULT = 5000L;
+    public static final String LDAP_POOL_VALIDATE_ON_BORROW = "pool.validate_on_borrow"; //default false, idle connections are validated when the pool is pruned
+    public static final String LDAP_POOL_IDLE_TIME = "pool.idle_time"; //ms
+    public static final long LDAP_POOL_IDLE_TIME_DEFAULT = 5 * 60 * 1000L;
+    public static final String LDAP_POOL_PRUNE_PERIOD = "pool.prune_period"; //ms
+    public static final long LDAP_POOL_PRUNE_PERIOD_DEFAULT = 60 * 1000L;
+
     //ssl
     public static final String LDAPS_VERIFY_HOSTNAMES = "verify_hostnames";
     public static final boolean LDAPS_VERIFY_HOSTNAMES_DEFAULT = true;
@@ -47,6 +151,8 @@ public final class ConfigConstants {
     public static final String LDAPS_ENABLE_START_TLS = "enable_start_tls";
     public static final String LDAPS_ENABLE_SSL_CLIENT_AUTH = "enable_ssl_client_auth";
     public static final boolean LDAPS_ENABLE_SSL_CLIENT_AUTH_DEFAULT = false;
+    public static final String LDAPS_SSL_CONFIG_RELOAD_INTERVAL = "ssl_config_reload_interval"; //ms, <= 0 disables the reload check
+    public static final long LDAPS_SSL_CONFIG_RELOAD_INTERVAL_DEFAULT = 60 * 1000L;
     
     public static final String LDAPS_JKS_CERT_ALIAS = "cert_alias";
     public static final String LDAPS_JKS_TRUST_ALIAS = "ca_alias";
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A search filter pattern like {@code (&(member={0})(uid={1}))} parsed once into literal segments and
+ * placeholder slots ({0}, {1} and {2}). Rendering appends the segments and the (optionally RFC 2254
+ * escaped) values in a single pass, without scanning the pattern again.
+ */
+public final class FilterTemplate {
+
+    private static final int MAX_PLACEHOLDERS = 3;
+    private static final int MAX_REUSED_CAPACITY = 8192;
+
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private final String pattern;
+    // literals.length == slots.length + 1, literal i is followed by slot i
+    private final String[] literals;
+    private final int[] slots;
+
+    private FilterTemplate(final String pattern, final String[] literals, final int[] slots) {
+        this.pattern = pattern;
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    public static FilterTemplate compile(final String pattern) {
+
+        final List<String> literals = new ArrayList<String>(4);
+        final List<Integer> slots = new ArrayList<Integer>(3);
+        int start = 0;
+
+        for (int i = 0; i + 2 < pattern.length(); i++) {
+            if (pattern.charAt(i) == '{' && pattern.charAt(i + 2) == '}') {
+                final int slot = pattern.charAt(i + 1) - '0';
+
+                if (slot >= 0 && slot < MAX_PLACEHOLDERS) {
+                    literals.add(pattern.substring(start, i));
+                    slots.add(slot);
+                    start = i + 3;
+                    i += 2;
+                }
+            }
+        }
+
+        literals.add(pattern.substring(start));
+
+        final int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+
+        return new FilterTemplate(pattern, literals.toArray(new String[literals.size()]), slotArray);
+    }
+
+    /**
+     * @return true if the pattern contains {@code {index}}
+     */
+    public boolean uses(final int index) {
+        for (final int slot: slots) {
+            if (slot == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append the filter to {@code out}.
+     *
+     * @param escapeMask bit i set means value i is RFC 2254 escaped
+     * @param values the values for {0}, {1} and {2}, a missing or null value leaves the placeholder as it is
+     */
+    public StringBuilder appendTo(final StringBuilder out, final int escapeMask, final String... values) {
+
+        out.append(literals[0]);
+
+        for (int i = 0; i < slots.length; i++) {
+            final int slot = slots[i];
+            final String value = slot < values.length ? values[slot] : null;
+
+            if (value == null) {
+                out.append('{').append((char) ('0' + slot)).append('}');
+            } else if ((escapeMask & (1 << slot)) != 0) {
+                Utils.appendEscapedRfc2254(out, value);
+            } else {
+                out.append(value);
+            }
+
+            out.append(literals[i + 1]);
+        }
+
+        return out;
+    }
+
+    /**
+     * Render the filter with a reused per thread builder
+     *
+     * @see #appendTo(StringBuilder, int, String...)
+     */
+    public String render(final int escapeMask, final String... values) {
+
+        StringBuilder out = BUILDER.get();
+
+        if (out.capacity() > MAX_REUSED_CAPACITY) {
+            // don't keep huge builders around
+            out = new StringBuilder(256);
+            BUILDER.set(out);
+        }
+
+        out.setLength(0);
+        return appendTo(out, escapeMask, values).toString();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import javax.naming.ldap.LdapName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheLoader;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Process wide cache of group DN to the DNs of its direct parent groups, shared by all users and
+ * all backend instances which look at the same directory in the same way (hosts, bind dn, role
+ * search and role attribute). Search Guard recreates the backends on every configuration change,
+ * the cache survives this as long as the relevant settings stay the same.
+ */
+public final class GroupParentCache {
+
+    protected static final Logger log = LogManager.getLogger(GroupParentCache.class);
+
+    private static final Map<String, WeakReference<GroupParentCache>> INSTANCES = new HashMap<String, WeakReference<GroupParentCache>>();
+
+    private final Cache<LdapName, Parents> cache;
+
+    private GroupParentCache(final long ttl, final long maxSize) {
+        this.cache = CacheBuilder.<LdapName, Parents>builder()
+                .setExpireAfterWrite(TimeValue.timeValueMillis(ttl))
+                .setMaximumWeight(maxSize)
+                .build();
+    }
+
+    /**
+     * @return the shared cache for this directory and authz settings or null if {@code nested_cache.enabled} is false
+     */
+    public static GroupParentCache forSettings(final Settings settings) {
+
+        if (!settings.getAsBoolean(ConfigConstants.LDAP_AUTHZ_NESTED_CACHE_ENABLED, false)) {
+            return null;
+        }
+
+        final long ttl = settings.getAsLong(ConfigConstants.LDAP_AUTHZ_NESTED_CACHE_TTL, ConfigConstants.LDAP_AUTHZ_NESTED_CACHE_TTL_DEFAULT);
+        final long maxSize = settings.getAsLong(ConfigConstants.LDAP_AUTHZ_NESTED_CACHE_MAX_SIZE, ConfigConstants.LDAP_AUTHZ_NESTED_CACHE_MAX_SIZE_DEFAULT);
+
+        final String key = settings.getAsList(ConfigConstants.LDAP_HOSTS) + "|"
+                + settings.get(ConfigConstants.LDAP_BIND_DN) + "|"
+                + settings.get(ConfigConstants.LDAP_AUTHZ_ROLEBASE) + "|"
+                + settings.get(ConfigConstants.LDAP_AUTHZ_ROLESEARCH) + "|"
+                + settings.get(ConfigConstants.LDAP_AUTHZ_ROLESEARCH_ENABLED) + "|"
+                + settings.get(ConfigConstants.LDAP_AUTHZ_USERROLENAME) + "|"
+                + ttl + "|" + maxSize;
+
+        synchronized (INSTANCES) {
+            final WeakReference<GroupParentCache> ref = INSTANCES.get(key);
+            GroupParentCache instance = ref == null ? null : ref.get();
+
+            if (instance == null) {
+                // drop caches no backend refers to anymore
+                INSTANCES.values().removeIf(r -> r.get() == null);
+
+                instance = new GroupParentCache(ttl, maxSize);
+                INSTANCES.put(key, new WeakReference<GroupParentCache>(instance));
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Nested group cache: ttl {} ms, max size {}", ttl, maxSize);
+                }
+            }
+
+            return instance;
+        }
+    }
+
+    /**
+     * @return the direct parents of {@code group}, loaded with {@code loader} (once, also for concurrent callers) if not cached
+     */
+    public Set<LdapName> getParents(final LdapName group, final CacheLoader<LdapName, Set<LdapName>> loader) throws ExecutionException {
+        return cache.computeIfAbsent(group, k -> new Parents(k, loader.load(k))).parents;
+    }
+
+    /**
+     * @return the cached direct parents of {@code group} or null
+     */
+    public Set<LdapName> get(final LdapName group) {
+        final Parents cached = cache.get(group);
+        return cached == null ? null : cached.parents;
+    }
+
+    public void put(final LdapName group, final Set<LdapName> parents) {
+        cache.put(group, new Parents(group, parents));
+    }
+
+    public void invalidate(final LdapName group) {
+        cache.invalidate(group);
+    }
+
+    /**
+     * Remove the groups which have {@code parent} as a direct parent, e.g. because its members changed
+     */
+    public void invalidateChildren(final LdapName parent) {
+
+        final List<LdapName> children = new ArrayList<LdapName>();
+
+        for (final Parents cached: cache.values()) {
+            if (cached.parents.contains(parent)) {
+                children.add(cached.group);
+            }
+        }
+
+        for (final LdapName child: children) {
+            cache.invalidate(child);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static final class Parents {
+        private final LdapName group;
+        private final Set<LdapName> parents;
+
+        private Parents(final LdapName group, final Set<LdapName> parents) {
+            this.group = group;
+            this.parents = parents;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Keeps track of consecutive connect failures, connect latency and open (and idle pooled) connections per ldap host.
+ * <p>
+ * If {@code health.enabled} is true, the circuit of a host is opened after {@code health.failure_threshold}
+ * consecutive failures and it is only tried if no other host is left. An open circuit is closed again by a
+ * successful probe (or connect). It is false by default: each connection factory has its own registry and
+ * probes its hosts on its own, so a configuration with several ldap backends would probe the same hosts
+ * several times.
+ */
+public class HostHealthRegistry {
+
+    private static final double LATENCY_WEIGHT = 0.2d;
+
+    protected static final Logger log = LogManager.getLogger(HostHealthRegistry.class);
+
+    private final Map<String, HostState> hosts;
+    private final int failureThreshold;
+    private final boolean circuitBreakerEnabled;
+
+    public HostHealthRegistry(final Settings settings, final List<String> ldapHosts) {
+        this.failureThreshold = Math.max(1, settings.getAsInt(ConfigConstants.LDAP_HEALTH_FAILURE_THRESHOLD, ConfigConstants.LDAP_HEALTH_FAILURE_THRESHOLD_DEFAULT));
+        this.circuitBreakerEnabled = settings.getAsBoolean(ConfigConstants.LDAP_HEALTH_ENABLED, false);
+
+        final Map<String, HostState> hosts = new LinkedHashMap<String, HostState>(ldapHosts.size());
+        for (final String ldapHost: ldapHosts) {
+            hosts.put(ldapHost, new HostState());
+        }
+        this.hosts = Collections.unmodifiableMap(hosts);
+    }
+
+    /**
+     * Hosts with a closed circuit in configured order, followed by the hosts with an open circuit
+     */
+    public List<String> getHostsInOrder() {
+
+        final List<String> available = new ArrayList<String>(hosts.size());
+        List<String> unavailable = null;
+
+        for (final Map.Entry<String, HostState> host: hosts.entrySet()) {
+            if (host.getValue().open) {
+                if (unavailable == null) {
+                    unavailable = new ArrayList<String>(hosts.size());
+                }
+                unavailable.add(host.getKey());
+            } else {
+                available.add(host.getKey());
+            }
+        }
+
+        if (unavailable != null) {
+            available.addAll(unavailable);
+        }
+
+        return available;
+    }
+
+    public List<String> getAvailableHosts() {
+        return getHosts(false);
+    }
+
+    public List<String> getUnavailableHosts() {
+        return getHosts(true);
+    }
+
+    private List<String> getHosts(final boolean open) {
+
+        final List<String> result = new ArrayList<String>(hosts.size());
+
+        for (final Map.Entry<String, HostState> host: hosts.entrySet()) {
+            if (host.getValue().open == open) {
+                result.add(host.getKey());
+            }
+        }
+
+        return result;
+    }
+
+    public boolean isAvailable(final String ldapHost) {
+        final HostState state = hosts.get(ldapHost);
+        return state == null || !state.open;
+    }
+
+    public int getConsecutiveFailures(final String ldapHost) {
+        final HostState state = hosts.get(ldapHost);
+        return state == null ? 0 : state.consecutiveFailures.get();
+    }
+
+    /**
+     * Exponentially weighted moving average of the connect latency in ms, -1 if the host was never connected
+     */
+    public double getLatencyMillis(final String ldapHost) {
+        final HostState state = hosts.get(ldapHost);
+        return state == null ? -1d : state.latencyMillis;
+    }
+
+    /**
+     * Number of connections to this host which are currently open
+     */
+    public int getOpenConnections(final String ldapHost) {
+        final HostState state = hosts.get(ldapHost);
+        return state == null ? 0 : state.openConnections.get();
+    }
+
+    /**
+     * Number of open connections to this host which are in use, i.e. not idle in a pool
+     */
+    public int getActiveConnections(final String ldapHost) {
+        final HostState state = hosts.get(ldapHost);
+        return state == null ? 0 : state.openConnections.get() - state.idleConnections.get();
+    }
+
+    public void onConnectionOpened(final String ldapHost) {
+        final HostState state = hosts.get(ldapHost);
+        if (state != null) {
+            state.openConnections.incrementAndGet();
+        }
+    }
+
+    public void onConnectionClosed(final String ldapHost, final boolean idle) {
+        final HostState state = hosts.get(ldapHost);
+        if (state != null) {
+            if (idle) {
+                state.idleConnections.decrementAndGet();
+            }
+            state.openConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * An open connection was returned to a pool ({@code idle} is true) or borrowed from it
+     */
+    public void onConnectionIdle(final String ldapHost, final boolean idle) {
+        final HostState state = hosts.get(ldapHost);
+        if (state != null) {
+            if (idle) {
+                state.idleConnections.incrementAndGet();
+            } else {
+                state.idleConnections.decrementAndGet();
+            }
+        }
+    }
+
+    public void onSuccess(final String ldapHost, final long latencyNanos) {
+
+        final HostState state = hosts.get(ldapHost);
+
+        if (state == null) {
+            return;
+        }
+
+        state.recordLatency(TimeUnit.NANOSECONDS.toMicros(latencyNanos) / 1000d);
+        state.consecutiveFailures.set(0);
+
+        if (state.open) {
+            state.open = false;
+            log.info("ldap host {} is reachable again", ldapHost);
+        }
+    }
+
+    public void onFailure(final String ldapHost, final Exception e) {
+
+        final HostState state = hosts.get(ldapHost);
+
+        if (state == null) {
+            return;
+        }
+
+        final int failures = state.consecutiveFailures.incrementAndGet();
+
+        if (circuitBreakerEnabled && !state.open && failures >= failureThreshold) {
+            state.open = true;
+            log.warn("ldap host {} failed {} times in a row (last reason: {}), skip it until a probe succeeds", ldapHost, failures, e == null ? null : e.toString());
+        }
+    }
+
+    private static final class HostState {
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicInteger openConnections = new AtomicInteger();
+        private final AtomicInteger idleConnections = new AtomicInteger();
+        private volatile boolean open;
+        private volatile double latencyMillis = -1d;
+
+        private synchronized void recordLatency(final double millis) {
+            latencyMillis = latencyMillis < 0 ? millis : latencyMillis + LATENCY_WEIGHT * (millis - latencyMillis);
+        }
+    }
+}
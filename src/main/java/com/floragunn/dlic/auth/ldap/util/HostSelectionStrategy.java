@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Decides in which order the (available) ldap hosts are tried for a new connection,
+ * configured with {@code host_selection}.
+ */
+public interface HostSelectionStrategy {
+
+    /**
+     * @param hosts available hosts in configured order, must not be modified
+     * @param registry health and load of the hosts
+     * @return the hosts in the order in which they should be tried
+     */
+    List<String> select(List<String> hosts, HostHealthRegistry registry);
+
+    static HostSelectionStrategy create(final Settings settings) {
+
+        final String name = settings.get(ConfigConstants.LDAP_HOST_SELECTION, ConfigConstants.LDAP_HOST_SELECTION_ORDERED);
+
+        switch (name.toLowerCase(Locale.ROOT)) {
+        case ConfigConstants.LDAP_HOST_SELECTION_ORDERED:
+            return new Ordered();
+        case ConfigConstants.LDAP_HOST_SELECTION_ROUND_ROBIN:
+            return new RoundRobin();
+        case ConfigConstants.LDAP_HOST_SELECTION_RANDOM:
+            return new RandomOrder();
+        case ConfigConstants.LDAP_HOST_SELECTION_LEAST_OUTSTANDING:
+            return new LeastOutstanding();
+        case ConfigConstants.LDAP_HOST_SELECTION_LATENCY:
+            return new LatencyWeighted();
+        default:
+            throw new IllegalArgumentException("Unknown " + ConfigConstants.LDAP_HOST_SELECTION + ": " + name);
+        }
+    }
+
+    /**
+     * Always the configured order, the first host gets all the load as long as it is available
+     */
+    final class Ordered implements HostSelectionStrategy {
+
+        @Override
+        public List<String> select(final List<String> hosts, final HostHealthRegistry registry) {
+            return hosts;
+        }
+    }
+
+    /**
+     * The configured order rotated by one for every connection
+     */
+    final class RoundRobin implements HostSelectionStrategy {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public List<String> select(final List<String> hosts, final HostHealthRegistry registry) {
+            return rotate(hosts, counter.getAndIncrement());
+        }
+
+        static List<String> rotate(final List<String> hosts, final int distance) {
+
+            final int size = hosts.size();
+
+            if (size < 2) {
+                return hosts;
+            }
+
+            final int offset = (distance & Integer.MAX_VALUE) % size;
+            final List<String> result = new ArrayList<String>(size);
+            result.addAll(hosts.subList(offset, size));
+            result.addAll(hosts.subList(0, offset));
+            return result;
+        }
+    }
+
+    /**
+     * A random order for every connection
+     */
+    final class RandomOrder implements HostSelectionStrategy {
+
+        @Override
+        public List<String> select(final List<String> hosts, final HostHealthRegistry registry) {
+
+            if (hosts.size() < 2) {
+                return hosts;
+            }
+
+            final List<String> result = new ArrayList<String>(hosts);
+            Collections.shuffle(result, ThreadLocalRandom.current());
+            return result;
+        }
+    }
+
+    /**
+     * Hosts with the fewest connections currently in use first (idle pooled connections do not count),
+     * ties are broken round robin
+     */
+    final class LeastOutstanding implements HostSelectionStrategy {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public List<String> select(final List<String> hosts, final HostHealthRegistry registry) {
+
+            if (hosts.size() < 2) {
+                return hosts;
+            }
+
+            final List<String> result = RoundRobin.rotate(hosts, counter.getAndIncrement());
+            Collections.sort(result, Comparator.comparingInt(registry::getActiveConnections));
+            return result;
+        }
+    }
+
+    /**
+     * The first host is chosen randomly, weighted by the inverse of its moving average connect latency,
+     * the remaining hosts follow by ascending latency. Hosts without a measurement yet get the weight of
+     * the fastest host so that they are measured soon.
+     */
+    final class LatencyWeighted implements HostSelectionStrategy {
+
+        private static final double MIN_LATENCY_MILLIS = 0.1d;
+
+        @Override
+        public List<String> select(final List<String> hosts, final HostHealthRegistry registry) {
+
+            final int size = hosts.size();
+
+            if (size < 2) {
+                return hosts;
+            }
+
+            final double[] latencies = new double[size];
+            double fastest = Double.MAX_VALUE;
+
+            for (int i = 0; i < size; i++) {
+                latencies[i] = registry.getLatencyMillis(hosts.get(i));
+                if (latencies[i] >= 0) {
+                    latencies[i] = Math.max(MIN_LATENCY_MILLIS, latencies[i]);
+                    fastest = Math.min(fastest, latencies[i]);
+                }
+            }
+
+            if (fastest == Double.MAX_VALUE) {
+                fastest = 1d;
+            }
+
+            final double[] weights = new double[size];
+            double total = 0;
+
+            for (int i = 0; i < size; i++) {
+                if (latencies[i] < 0) {
+                    latencies[i] = fastest;
+                }
+                weights[i] = 1d / latencies[i];
+                total += weights[i];
+            }
+
+            double r = ThreadLocalRandom.current().nextDouble(total);
+            int first = size - 1;
+
+            for (int i = 0; i < size; i++) {
+                r -= weights[i];
+                if (r < 0) {
+                    first = i;
+                    break;
+                }
+            }
+
+            final List<String> rest = new ArrayList<String>(hosts);
+            rest.remove(first);
+            Collections.sort(rest, Comparator.comparingDouble(h -> latencies[hosts.indexOf(h)]));
+
+            final List<String> result = new ArrayList<String>(size);
+            result.add(hosts.get(first));
+            result.addAll(rest);
+            return result;
+        }
+    }
+}
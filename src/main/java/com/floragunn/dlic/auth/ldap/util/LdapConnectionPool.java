@@ -0,0 +1,425 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.lang.ref.WeakReference;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.settings.Settings;
+import org.ldaptive.BindRequest;
+import org.ldaptive.Connection;
+import org.ldaptive.ConnectionConfig;
+import org.ldaptive.LdapException;
+import org.ldaptive.Response;
+import org.ldaptive.control.RequestControl;
+import org.ldaptive.pool.BlockingTimeoutException;
+import org.ldaptive.pool.PoolException;
+import org.ldaptive.pool.PoolInterruptedException;
+import org.ldaptive.pool.SearchValidator;
+import org.ldaptive.provider.ProviderConnection;
+
+/**
+ * Bounded pool of open and already bound (service account) connections.
+ * <p>
+ * Borrowed connections are handed out as {@link Connection} proxies, calling {@link Connection#close()}
+ * (or {@link Utils#unbindAndCloseSilently(Connection)}) returns them to the pool. A connection which was
+ * reopened while borrowed has lost its service identity and is discarded instead of being returned.
+ * With a {@link ConnectionReset} every returned connection is reset first, e.g. bound as the service account
+ * again after a user was bound on it, and discarded if that fails.
+ * <p>
+ * Backends have no close hook (see {@link BackgroundTasks}), so the pool holds its owners weakly and closes
+ * itself on the next prune after the last of them was garbage collected.
+ */
+public class LdapConnectionPool {
+
+    public interface ConnectionFactory {
+        Connection create() throws Exception;
+    }
+
+    /**
+     * Brings a returned connection back into the state it was created in
+     */
+    public interface ConnectionReset {
+        void reset(Connection connection) throws Exception;
+    }
+
+    /**
+     * Implemented by connections which keep track of whether they are idle in a pool or in use
+     */
+    public interface IdleAware {
+        void setIdle(boolean idle);
+    }
+
+    protected static final Logger log = LogManager.getLogger(LdapConnectionPool.class);
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final ConnectionReset reset;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeout;
+    private final boolean validateOnBorrow;
+    private final long idleTime;
+    private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<IdleConnection>();
+    private final Semaphore permits;
+    // guarded by itself
+    private final List<WeakReference<Object>> owners = new ArrayList<WeakReference<Object>>();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+    private final ScheduledFuture<?> pruneTask;
+    private volatile boolean closed;
+
+    public LdapConnectionPool(final String name, final Settings settings, final ConnectionFactory factory, final Object owner) {
+        this(name, settings, factory, null, owner);
+    }
+
+    public LdapConnectionPool(final String name, final Settings settings, final ConnectionFactory factory, final ConnectionReset reset,
+            final Object owner) {
+        this.name = name;
+        this.owners.add(new WeakReference<Object>(owner));
+        this.factory = factory;
+        this.reset = reset;
+        this.maxSize = Math.max(1, settings.getAsInt(ConfigConstants.LDAP_POOL_MAX_SIZE, ConfigConstants.LDAP_POOL_MAX_SIZE_DEFAULT));
+        this.minSize = Math.max(0, Math.min(maxSize, settings.getAsInt(ConfigConstants.LDAP_POOL_MIN_SIZE, ConfigConstants.LDAP_POOL_MIN_SIZE_DEFAULT)));
+        this.borrowTimeout = settings.getAsLong(ConfigConstants.LDAP_POOL_BORROW_TIMEOUT, ConfigConstants.LDAP_POOL_BORROW_TIMEOUT_DEFAULT);
+        this.validateOnBorrow = settings.getAsBoolean(ConfigConstants.LDAP_POOL_VALIDATE_ON_BORROW, false);
+        this.idleTime = settings.getAsLong(ConfigConstants.LDAP_POOL_IDLE_TIME, ConfigConstants.LDAP_POOL_IDLE_TIME_DEFAULT);
+        this.permits = new Semaphore(maxSize, true);
+
+        final long prunePeriod = settings.getAsLong(ConfigConstants.LDAP_POOL_PRUNE_PERIOD, ConfigConstants.LDAP_POOL_PRUNE_PERIOD_DEFAULT);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Pool {}: min {}, max {}, borrow timeout {} ms, validate on borrow {}, idle time {} ms, prune period {} ms", name, minSize, maxSize,
+                    borrowTimeout, validateOnBorrow, idleTime, prunePeriod);
+        }
+
+        // the scheduler only hands the prune over, opening connections blocks
+        this.pruneTask = BackgroundTasks.executor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (pruning.compareAndSet(false, true)) {
+                    BackgroundTasks.workers().execute(LdapConnectionPool.this::pruneInBackground);
+                }
+            }
+        }, 0, prunePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add another owner which uses this pool, e.g. a backend sharing it
+     *
+     * @return false if the pool is already closed and can not be used anymore
+     */
+    public boolean acquire(final Object owner) {
+        synchronized (owners) {
+            if (closed) {
+                return false;
+            }
+
+            owners.add(new WeakReference<Object>(owner));
+            return true;
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public Connection borrow() throws LdapException {
+
+        if (closed) {
+            throw new PoolException("Pool " + name + " is closed");
+        }
+
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new BlockingTimeoutException("No connection available in pool " + name + " after " + borrowTimeout + " ms");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PoolInterruptedException("Interrupted while waiting for a connection of pool " + name, e);
+        }
+
+        try {
+            IdleConnection candidate;
+
+            while ((candidate = idle.pollFirst()) != null) {
+                setIdle(candidate.connection, false);
+
+                if (validateOnBorrow ? validate(candidate.connection) : candidate.connection.isOpen()) {
+                    return new PooledConnection(candidate.connection);
+                }
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Discard invalid connection from pool {}", name);
+                }
+
+                Utils.unbindAndCloseSilently(candidate.connection);
+            }
+
+            return new PooledConnection(factory.create());
+
+        } catch (final LdapException e) {
+            permits.release();
+            throw e;
+        } catch (final Exception e) {
+            permits.release();
+            throw new PoolException("Unable to create connection for pool " + name, e);
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    private void pruneInBackground() {
+        try {
+            if (!hasOwners()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Close pool {}, all owners are gone", name);
+                }
+                close();
+                return;
+            }
+
+            prune();
+        } catch (final Throwable e) {
+            log.warn("Unable to prune pool {} due to {}", name, e.toString());
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    private boolean hasOwners() {
+        synchronized (owners) {
+            owners.removeIf(ref -> ref.get() == null);
+            return !owners.isEmpty();
+        }
+    }
+
+    /**
+     * Close connections which have been idle for longer than the configured idle time
+     * (while keeping the minimum size) or which fail validation, and top the pool up to its minimum size.
+     */
+    public void prune() {
+
+        if (closed) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+
+        for (final Iterator<IdleConnection> it = idle.descendingIterator(); it.hasNext();) {
+            final IdleConnection ic = it.next();
+
+            if (idle.size() + getActiveCount() <= minSize) {
+                break;
+            }
+
+            if (now - ic.since > idleTime && idle.removeFirstOccurrence(ic)) {
+                setIdle(ic.connection, false);
+                Utils.unbindAndCloseSilently(ic.connection);
+            }
+        }
+
+        // validated here instead of on every borrow, taken out meanwhile so it is not borrowed at the same time
+        for (final IdleConnection ic: new ArrayList<IdleConnection>(idle)) {
+
+            if (!idle.removeFirstOccurrence(ic)) {
+                continue;
+            }
+
+            if (validate(ic.connection)) {
+                idle.offerLast(ic);
+
+                if (!closed || !idle.removeFirstOccurrence(ic)) {
+                    continue;
+                }
+            } else if (log.isDebugEnabled()) {
+                log.debug("Discard invalid connection from pool {}", name);
+            }
+
+            setIdle(ic.connection, false);
+            Utils.unbindAndCloseSilently(ic.connection);
+        }
+
+        while (!closed && idle.size() + getActiveCount() < minSize) {
+            try {
+                final Connection connection = factory.create();
+                setIdle(connection, true);
+                idle.offerLast(new IdleConnection(connection));
+            } catch (final Exception e) {
+                log.warn("Unable to fill pool {} due to {}", name, e.toString());
+                break;
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (owners) {
+            closed = true;
+            owners.clear();
+        }
+        pruneTask.cancel(false);
+        IdleConnection ic;
+        while ((ic = idle.pollFirst()) != null) {
+            setIdle(ic.connection, false);
+            Utils.unbindAndCloseSilently(ic.connection);
+        }
+    }
+
+    private void release(final Connection connection, final boolean reusable) {
+        try {
+            if (closed || !reusable || !connection.isOpen() || !reset(connection)) {
+                Utils.unbindAndCloseSilently(connection);
+            } else {
+                setIdle(connection, true);
+                idle.offerFirst(new IdleConnection(connection));
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean reset(final Connection connection) {
+
+        if (reset == null) {
+            return true;
+        }
+
+        try {
+            reset.reset(connection);
+            return true;
+        } catch (final Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Discard connection of pool {} which could not be reset due to {}", name, e.toString());
+            }
+            return false;
+        }
+    }
+
+    private static void setIdle(final Connection connection, final boolean idle) {
+        if (connection instanceof IdleAware) {
+            ((IdleAware) connection).setIdle(idle);
+        }
+    }
+
+    private static boolean validate(final Connection connection) {
+
+        final SecurityManager sm = System.getSecurityManager();
+
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+
+        return AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+            @Override
+            public Boolean run() {
+                return connection.isOpen() && new SearchValidator().validate(connection);
+            }
+        });
+    }
+
+    private static final class IdleConnection {
+        private final Connection connection;
+        private final long since = System.currentTimeMillis();
+
+        private IdleConnection(final Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final class PooledConnection implements Connection {
+
+        private final Connection delegate;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean reusable = true;
+
+        private PooledConnection(final Connection delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ConnectionConfig getConnectionConfig() {
+            return delegate.getConnectionConfig();
+        }
+
+        @Override
+        public Response<Void> open() throws LdapException {
+            throw new IllegalStateException("Pooled connection is already open");
+        }
+
+        @Override
+        public Response<Void> open(final BindRequest request) throws LdapException {
+            throw new IllegalStateException("Pooled connection is already open");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !released.get() && delegate.isOpen();
+        }
+
+        @Override
+        public ProviderConnection getProviderConnection() {
+            if (released.get()) {
+                throw new IllegalStateException("Pooled connection was already returned to pool " + name);
+            }
+            return delegate.getProviderConnection();
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(delegate, reusable);
+            }
+        }
+
+        @Override
+        public void close(final RequestControl[] controls) {
+            close();
+        }
+
+        @Override
+        public Response<Void> reopen() throws LdapException {
+            reusable = false;
+            return delegate.reopen();
+        }
+
+        @Override
+        public Response<Void> reopen(final BindRequest request) throws LdapException {
+            reusable = false;
+            return delegate.reopen(request);
+        }
+
+        @Override
+        public String toString() {
+            return "PooledConnection[" + name + "] " + delegate;
+        }
+    }
+}
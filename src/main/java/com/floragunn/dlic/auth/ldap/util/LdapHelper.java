@@ -18,57 +18,253 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.settings.Settings;
 import org.ldaptive.Connection;
 import org.ldaptive.DerefAliases;
 import org.ldaptive.LdapEntry;
 import org.ldaptive.LdapException;
-import org.ldaptive.Response;
+import org.ldaptive.ResultCode;
 import org.ldaptive.ReturnAttributes;
 import org.ldaptive.SearchOperation;
+import org.ldaptive.SearchEntry;
 import org.ldaptive.SearchRequest;
-import org.ldaptive.SearchResult;
 import org.ldaptive.SearchScope;
+import org.ldaptive.control.PersistentSearchChangeType;
+import org.ldaptive.control.PersistentSearchRequestControl;
+import org.ldaptive.control.util.PagedResultsClient;
+import org.ldaptive.handler.HandlerResult;
+import org.ldaptive.handler.SearchEntryHandler;
 import org.ldaptive.referral.SearchReferralHandler;
 
 public class LdapHelper {
 
+    protected static final Logger log = LogManager.getLogger(LdapHelper.class);
+
+    public interface EntryHandler {
+        void handle(LdapEntry entry) throws LdapException;
+    }
+
+    /**
+     * Page size, size limit and time limit (ms) of a search, 0 means none.
+     * Configured with {@code search.page_size}, {@code search.size_limit} and {@code search.time_limit}.
+     */
+    public static final class SearchLimits {
+
+        public static final SearchLimits NONE = new SearchLimits(0, 0, 0);
+
+        private final int pageSize;
+        private final long sizeLimit;
+        private final long timeLimit;
+
+        public SearchLimits(final int pageSize, final long sizeLimit, final long timeLimit) {
+            this.pageSize = Math.max(0, pageSize);
+            this.sizeLimit = Math.max(0, sizeLimit);
+            this.timeLimit = Math.max(0, timeLimit);
+        }
+
+        public static SearchLimits forSettings(final Settings settings) {
+            return new SearchLimits(settings.getAsInt(ConfigConstants.LDAP_SEARCH_PAGE_SIZE, 0),
+                    settings.getAsLong(ConfigConstants.LDAP_SEARCH_SIZE_LIMIT, 0L),
+                    settings.getAsLong(ConfigConstants.LDAP_SEARCH_TIME_LIMIT, 0L));
+        }
+    }
+
     public static List<LdapEntry> search(final Connection conn, final String baseDn, final String filter, final SearchScope searchScope) throws LdapException {
+        return search(conn, baseDn, filter, searchScope, ReturnAttributes.ALL.value());
+    }
+
+    /**
+     * @param returnAttributes the attributes the entries should contain, {@link ReturnAttributes#NONE} (1.1) for no
+     *        attributes at all or {@link ReturnAttributes#ALL} (or null) for all user and operational attributes
+     */
+    public static List<LdapEntry> search(final Connection conn, final String baseDn, final String filter, final SearchScope searchScope,
+            final String... returnAttributes) throws LdapException {
+
+        final List<LdapEntry> entries = new ArrayList<>();
+        search(conn, baseDn, filter, searchScope, SearchLimits.NONE, entries::add, returnAttributes);
+        return entries;
+    }
+
+    /**
+     * Streaming search, every entry is passed to {@code handler} as soon as it arrives and is not retained afterwards.
+     * With a page size the entries are fetched page by page with the Simple Paged Results control (RFC 2696).
+     * If the size or time limit is hit the search ends early, the entries handled so far are kept.
+     *
+     * @return the number of entries passed to {@code handler}
+     */
+    public static int search(final Connection conn, final String baseDn, final String filter, final SearchScope searchScope, final SearchLimits limits,
+            final EntryHandler handler, final String... returnAttributes) throws LdapException {
 
         final SecurityManager sm = System.getSecurityManager();
 
         if (sm != null) {
             sm.checkPermission(new SpecialPermission());
         }
+
+        final int[] count = new int[1];
         
         try {
-            return AccessController.doPrivileged(new PrivilegedExceptionAction<List<LdapEntry>>() {
+            final ResultCode resultCode = AccessController.doPrivileged(new PrivilegedExceptionAction<ResultCode>() {
                 @Override
-                public List<LdapEntry> run() throws Exception {
-                    final List<LdapEntry> entries = new ArrayList<>();
+                public ResultCode run() throws Exception {
                     final SearchRequest request = new SearchRequest(baseDn, filter);
                     request.setReferralHandler(new SearchReferralHandler());
                     request.setSearchScope(searchScope);
                     request.setDerefAliases(DerefAliases.ALWAYS);
-                    request.setReturnAttributes(ReturnAttributes.ALL.value());
-                    final SearchOperation search = new SearchOperation(conn);
-                    // referrals will be followed to build the response
-                    final Response<SearchResult> r = search.execute(request);
-                    final org.ldaptive.SearchResult result = r.getResult();
-                    entries.addAll(result.getEntries());
-                    return entries;
+                    request.setReturnAttributes(returnAttributes == null ? ReturnAttributes.ALL.value() : returnAttributes);
+                    request.setSizeLimit(limits.sizeLimit);
+                    request.setTimeLimit(limits.timeLimit);
+                    request.setSearchEntryHandlers(new SearchEntryHandler() {
+                        @Override
+                        public HandlerResult<SearchEntry> handle(final Connection conn, final SearchRequest request, final SearchEntry entry) throws LdapException {
+                            count[0]++;
+                            handler.handle(entry);
+                            // drop the entry from the search result
+                            return new HandlerResult<SearchEntry>(null);
+                        }
+
+                        @Override
+                        public void initializeRequest(final SearchRequest request) {
+                        }
+                    });
+
+                    try {
+                        // referrals will be followed to build the response
+                        if (limits.pageSize > 0) {
+                            // the jndi provider loses the paged results response control (and thereby the cookie)
+                            // if no attributes are requested, fall back to a single small attribute
+                            if (ReturnAttributes.NONE.equalsAttributes(request.getReturnAttributes())) {
+                                request.setReturnAttributes("objectClass");
+                            }
+                            return new PagedResultsClient(conn, limits.pageSize).executeToCompletion(request).getResultCode();
+                        } else {
+                            return new SearchOperation(conn).execute(request).getResultCode();
+                        }
+                    } catch (final LdapException e) {
+                        if (e.getResultCode() == ResultCode.SIZE_LIMIT_EXCEEDED || e.getResultCode() == ResultCode.TIME_LIMIT_EXCEEDED) {
+                            return e.getResultCode();
+                        }
+                        throw e;
+                    }
+                }
+            });
+
+            if (resultCode == ResultCode.SIZE_LIMIT_EXCEEDED || resultCode == ResultCode.TIME_LIMIT_EXCEEDED) {
+                log.warn("Search '{}' in '{}' ended early with {} after {} entries", filter, baseDn, resultCode, count[0]);
+            }
+
+            return count[0];
+        } catch (PrivilegedActionException e) {
+            if (e.getException() instanceof LdapException) {
+                throw (LdapException) e.getException();
+            }
+            throw new LdapException(e);
+        }
+    }
+
+    /**
+     * Persistent search (draft-ietf-ldapext-psearch) for changes below {@code baseDn}: every added, modified, renamed or
+     * deleted entry is passed to {@code handler} as soon as the server reports it. No entries are returned up front.
+     * Blocks until the search ends, i.e. the connection fails or the response timeout of the connection is reached
+     * without any change. A server which does not support the control fails the search.
+     */
+    public static void persistentSearch(final Connection conn, final String baseDn, final EntryHandler handler,
+            final String... returnAttributes) throws LdapException {
+
+        final SecurityManager sm = System.getSecurityManager();
+
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+
+        try {
+            AccessController.doPrivileged(new PrivilegedExceptionAction<Void>() {
+                @Override
+                public Void run() throws Exception {
+                    final SearchRequest request = new SearchRequest(baseDn, "(objectClass=*)");
+                    request.setSearchScope(SearchScope.SUBTREE);
+                    request.setReturnAttributes(returnAttributes == null ? ReturnAttributes.ALL.value() : returnAttributes);
+                    request.setControls(new PersistentSearchRequestControl(EnumSet.allOf(PersistentSearchChangeType.class), true, true, true));
+                    request.setSearchEntryHandlers(new SearchEntryHandler() {
+                        @Override
+                        public HandlerResult<SearchEntry> handle(final Connection conn, final SearchRequest request, final SearchEntry entry) throws LdapException {
+                            handler.handle(entry);
+                            // the search never completes, do not collect the entries
+                            return new HandlerResult<SearchEntry>(null);
+                        }
+
+                        @Override
+                        public void initializeRequest(final SearchRequest request) {
+                        }
+                    });
+
+                    new SearchOperation(conn).execute(request);
+                    return null;
                 }
             });
         } catch (PrivilegedActionException e) {
+            if (e.getException() instanceof LdapException) {
+                throw (LdapException) e.getException();
+            }
             throw new LdapException(e);
         }
     }
 
+    /**
+     * Return attributes for a search which needs exactly {@code names}. Null, empty and duplicate names and the
+     * pseudo attribute "dn" are skipped, if nothing is left the result is {@link ReturnAttributes#NONE} (1.1).
+     */
+    public static String[] returnAttributes(final Collection<String> names) {
+
+        final List<String> result = new ArrayList<String>(names.size());
+
+        for (final String name: names) {
+            if (name == null || name.isEmpty() || "dn".equalsIgnoreCase(name)) {
+                continue;
+            }
+
+            boolean duplicate = false;
+
+            for (final String other: result) {
+                if (other.equalsIgnoreCase(name)) {
+                    duplicate = true;
+                    break;
+                }
+            }
+
+            if (!duplicate) {
+                result.add(name);
+            }
+        }
+
+        return result.isEmpty() ? ReturnAttributes.NONE.value() : result.toArray(new String[result.size()]);
+    }
+
     public static LdapEntry lookup(final Connection conn, final String dn) throws LdapException {
+        return lookup(conn, dn, ReturnAttributes.ALL.value());
+    }
 
-        final List<LdapEntry> entries = search(conn, dn, "(objectClass=*)", SearchScope.OBJECT);
+    public static LdapEntry lookup(final Connection conn, final String dn, final String... returnAttributes) throws LdapException {
+
+        final List<LdapEntry> entries = search(conn, dn, "(objectClass=*)", SearchScope.OBJECT, returnAttributes);
 
         if (entries.size() == 1) {
             return entries.get(0);
@@ -77,4 +273,91 @@ public class LdapHelper {
         }
     }
 
+    /**
+     * Look up several entries at once. The entries below {@code baseDn} are read with one search for their relative
+     * dns, e.g. {@code (|(cn=a)(cn=b))}, the others one by one.
+     *
+     * @return the entries found, by dn
+     */
+    public static Map<LdapName, LdapEntry> lookup(final Connection conn, final String baseDn, final Collection<LdapName> dns,
+            final String... returnAttributes) throws LdapException {
+
+        final Map<LdapName, LdapEntry> result = new HashMap<LdapName, LdapEntry>(dns.size());
+        final Set<LdapName> below = new HashSet<LdapName>(dns.size());
+        final StringBuilder filter = new StringBuilder(dns.size() * 32).append("(|");
+        LdapName base;
+
+        try {
+            base = new LdapName(baseDn);
+        } catch (final InvalidNameException e) {
+            base = null;
+        }
+
+        for (final LdapName dn: dns) {
+
+            if (base != null && dn.size() > base.size() && dn.startsWith(base) && appendRdnFilter(filter, dn.getRdn(dn.size() - 1))) {
+                below.add(dn);
+                continue;
+            }
+
+            final LdapEntry entry = lookup(conn, dn.toString(), returnAttributes);
+
+            if (entry != null) {
+                result.put(dn, entry);
+            }
+        }
+
+        if (below.isEmpty()) {
+            return result;
+        }
+
+        for (final LdapEntry entry: search(conn, baseDn, filter.append(')').toString(), SearchScope.SUBTREE, returnAttributes)) {
+            try {
+                final LdapName dn = new LdapName(entry.getDn());
+
+                // the filter also matches entries with the same rdn elsewhere below the base
+                if (below.contains(dn)) {
+                    result.put(dn, entry);
+                }
+            } catch (final InvalidNameException e) {
+                throw new LdapException(e);
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean appendRdnFilter(final StringBuilder filter, final Rdn rdn) {
+
+        final int start = filter.length();
+
+        if (rdn.size() > 1) {
+            filter.append("(&");
+        }
+
+        try {
+            for (final NamingEnumeration<? extends Attribute> attributes = rdn.toAttributes().getAll(); attributes.hasMore();) {
+                final Attribute attribute = attributes.next();
+                final Object value = attribute.get();
+
+                if (!(value instanceof String)) {
+                    filter.setLength(start);
+                    return false;
+                }
+
+                filter.append('(').append(attribute.getID()).append('=');
+                Utils.appendEscapedRfc2254(filter, (String) value).append(')');
+            }
+        } catch (final NamingException e) {
+            filter.setLength(start);
+            return false;
+        }
+
+        if (rdn.size() > 1) {
+            filter.append(')');
+        }
+
+        return true;
+    }
+
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+/**
+ * A list of names, wildcard patterns ({@code *} and {@code ?}) and regular expressions ({@code /regex/}) with the semantics of
+ * {@link WildcardMatcher#matchAny(Collection, String)}, but sorted and compiled once: plain names are looked up in a set and
+ * regular expressions are not compiled again for every match.
+ */
+public final class NameMatcher {
+
+    public static final NameMatcher NONE = new NameMatcher(new HashSet<String>(), new ArrayList<String>(), new ArrayList<Pattern>());
+
+    private final Set<String> names;
+    private final List<String> wildcards;
+    private final List<Pattern> regexes;
+
+    private NameMatcher(final Set<String> names, final List<String> wildcards, final List<Pattern> regexes) {
+        this.names = names;
+        this.wildcards = wildcards;
+        this.regexes = regexes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if one of the regular expressions is invalid
+     */
+    public static NameMatcher compile(final Collection<String> patterns) {
+
+        if (patterns == null || patterns.isEmpty()) {
+            return NONE;
+        }
+
+        final Set<String> names = new HashSet<String>();
+        final List<String> wildcards = new ArrayList<String>();
+        final List<Pattern> regexes = new ArrayList<Pattern>();
+
+        for (final String pattern: patterns) {
+
+            if (pattern == null) {
+                continue;
+            }
+
+            if (pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+                try {
+                    regexes.add(Pattern.compile(pattern.substring(1, pattern.length() - 1)));
+                } catch (final PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid regular expression " + pattern + ": " + e.getDescription(), e);
+                }
+            } else if (WildcardMatcher.containsWildcard(pattern)) {
+                wildcards.add(pattern);
+            } else {
+                names.add(pattern);
+            }
+        }
+
+        return new NameMatcher(names, wildcards, regexes);
+    }
+
+    public boolean isEmpty() {
+        return names.isEmpty() && wildcards.isEmpty() && regexes.isEmpty();
+    }
+
+    public boolean matches(final String candidate) {
+
+        if (candidate == null) {
+            return false;
+        }
+
+        if (names.contains(candidate)) {
+            return true;
+        }
+
+        for (final String wildcard: wildcards) {
+            if (WildcardMatcher.match(wildcard, candidate)) {
+                return true;
+            }
+        }
+
+        for (final Pattern regex: regexes) {
+            if (regex.matcher(candidate).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
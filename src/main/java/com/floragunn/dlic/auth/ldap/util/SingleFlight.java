@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.dlic.auth.ldap.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Coalesces concurrent calls with the same key: the first call does the work, calls arriving while it is
+ * in flight wait for its result or failure instead of repeating it. A waiter gives up after {@code maxWait}
+ * ms and does the work on its own. Nothing is kept once the first call is finished, this is not a cache.
+ */
+public final class SingleFlight<K, V> {
+
+    protected static final Logger log = LogManager.getLogger(SingleFlight.class);
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+    private final long maxWait;
+
+    public SingleFlight(final long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @param work computes the result, failures are expected as runtime exceptions
+     * @param share derives the result of a waiting call from the result of the first call
+     */
+    public V execute(final K key, final Supplier<V> work, final UnaryOperator<V> share) {
+
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+        final CompletableFuture<V> first = inFlight.putIfAbsent(key, future);
+
+        if (first == null) {
+            try {
+                final V result = work.get();
+                future.complete(result);
+                return result;
+            } catch (final RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, future);
+            }
+        }
+
+        try {
+            return share.apply(first.get(maxWait, TimeUnit.MILLISECONDS));
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (final TimeoutException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("No result after waiting {} ms, do the work again", maxWait);
+            }
+            return work.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a concurrent call", e);
+        }
+    }
+
+    /**
+     * @return the number of calls in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -17,7 +17,6 @@ package com.floragunn.dlic.auth.ldap.util;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.util.StringTokenizer;
 
 import org.apache.logging.log4j.LogManager;
 import org.elasticsearch.SpecialPermission;
@@ -25,8 +24,6 @@ import org.ldaptive.Connection;
 
 public final class Utils {
 
-    private static final String RFC2254_ESCAPE_CHARS = "\\*()\000";
-    
     static {
         //printLicenseInfo();
     }
@@ -65,44 +62,79 @@ public final class Utils {
     
     /**
      * RFC 2254 string escaping
+     *
+     * @return {@code str} itself if there is nothing to escape
      */
     public static String escapeStringRfc2254(final String str) {
         
         if(str == null || str.length() == 0) {
             return str;
         }
-        
-        final StringTokenizer tok = new StringTokenizer(str, RFC2254_ESCAPE_CHARS, true);
 
-        if (tok.countTokens() == 0) {    
+        final int length = str.length();
+        int first = 0;
+
+        while (first < length && !needsRfc2254Escape(str.charAt(first))) {
+            first++;
+        }
+
+        if (first == length) {
             return str;
         }
-        
-        final StringBuilder out= new StringBuilder();
-        while (tok.hasMoreTokens()) {
-            final String s = tok.nextToken();
-            
-            if (s.equals("*")) {
-                out.append("\\2a");
+
+        int escaped = 1;
+
+        for (int i = first + 1; i < length; i++) {
+            if (needsRfc2254Escape(str.charAt(i))) {
+                escaped++;
             }
-            else if (s.equals("(")) {
+        }
+
+        // every escaped char becomes three chars
+        final StringBuilder out = new StringBuilder(length + 2 * escaped);
+        out.append(str, 0, first);
+        return appendEscapedRfc2254(out, str, first).toString();
+    }    
+
+    /**
+     * Append {@code str} RFC 2254 escaped (like {@link #escapeStringRfc2254(String)}) to {@code out}
+     */
+    public static StringBuilder appendEscapedRfc2254(final StringBuilder out, final String str) {
+        return appendEscapedRfc2254(out, str, 0);
+    }
+
+    private static StringBuilder appendEscapedRfc2254(final StringBuilder out, final String str, final int start) {
+
+        for (int i = start; i < str.length(); i++) {
+            final char c = str.charAt(i);
+
+            switch (c) {
+            case '*':
+                out.append("\\2a");
+                break;
+            case '(':
                 out.append("\\28");
-            }    
-            else if (s.equals(")")) {
+                break;
+            case ')':
                 out.append("\\29");
-            }    
-            else if (s.equals("\\")) {
+                break;
+            case '\\':
                 out.append("\\5c");
-            }
-            else if (s.equals("\000")) {
+                break;
+            case '\000':
                 out.append("\\00");
-            }
-            else {
-                out.append(s);
+                break;
+            default:
+                out.append(c);
             }
         }
-        return out.toString();
-    }    
+
+        return out;
+    }
+
+    private static boolean needsRfc2254Escape(final char c) {
+        return c == '*' || c == '(' || c == ')' || c == '\\' || c == '\000';
+    }
 
     private static void printLicenseInfo() {
         final StringBuilder sb = new StringBuilder();
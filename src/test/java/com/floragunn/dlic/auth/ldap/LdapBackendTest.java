@@ -15,23 +15,46 @@
 package com.floragunn.dlic.auth.ldap;
 
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import javax.naming.ldap.LdapName;
 
 import org.elasticsearch.ElasticsearchSecurityException;
 import org.elasticsearch.common.settings.Settings;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
+import org.ldaptive.BindRequest;
 import org.ldaptive.Connection;
+import org.ldaptive.Credential;
 import org.ldaptive.LdapEntry;
+import org.ldaptive.LdapException;
+import org.ldaptive.ReturnAttributes;
+import org.ldaptive.SearchScope;
 
 import com.floragunn.dlic.auth.ldap.backend.LDAPAuthenticationBackend;
 import com.floragunn.dlic.auth.ldap.backend.LDAPAuthorizationBackend;
+import com.floragunn.dlic.auth.ldap.backend.LDAPConnectionFactory;
 import com.floragunn.dlic.auth.ldap.srv.EmbeddedLDAPServer;
 import com.floragunn.dlic.auth.ldap.util.ConfigConstants;
+import com.floragunn.dlic.auth.ldap.util.GroupParentCache;
+import com.floragunn.dlic.auth.ldap.util.HostSelectionStrategy;
+import com.floragunn.dlic.auth.ldap.util.LdapConnectionPool;
 import com.floragunn.dlic.auth.ldap.util.LdapHelper;
+import com.floragunn.dlic.auth.ldap.util.Utils;
 import com.floragunn.searchguard.test.helper.file.FileHelper;
 import com.floragunn.searchguard.user.AuthCredentials;
 import com.floragunn.searchguard.user.User;
@@ -202,6 +225,50 @@ public class LdapBackendTest {
         Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getName());
     }
     
+    @Test
+    public void testLdapAuthenticationSSLReload() throws Exception {
+
+        startLDAPServer();
+
+        // starts with a store which does not contain the ca of the server
+        final Path truststore = Files.createTempFile("truststore", ".jks");
+        Files.copy(FileHelper.getAbsoluteFilePathFromClassPath("spock-keystore.jks"), truststore, StandardCopyOption.REPLACE_EXISTING);
+
+        try {
+            final Settings settings = Settings.builder()
+                    .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapsPort)
+                    .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                    .put(ConfigConstants.LDAPS_ENABLE_SSL, true)
+                    .put(ConfigConstants.LDAPS_SSL_CONFIG_RELOAD_INTERVAL, 100)
+                    .put("searchguard.ssl.transport.truststore_filepath", truststore.toString())
+                    .put("verify_hostnames", false)
+                    .put("path.home",".")
+                    .build();
+
+            final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+            final AuthCredentials credentials = new AuthCredentials("jacksonm", "secret".getBytes(StandardCharsets.UTF_8));
+
+            try {
+                authc.authenticate(credentials);
+                Assert.fail();
+            } catch (final ElasticsearchSecurityException e) {
+                //expected, the server is not trusted
+            }
+
+            Files.copy(FileHelper.getAbsoluteFilePathFromClassPath("truststore.jks"), truststore, StandardCopyOption.REPLACE_EXISTING);
+
+            awaitTrue("truststore reloaded", () -> {
+                try {
+                    return authc.authenticate(credentials) != null;
+                } catch (final ElasticsearchSecurityException e) {
+                    return false;
+                }
+            }, 5000);
+        } finally {
+            Files.deleteIfExists(truststore);
+        }
+    }
+
     @Test
     public void testLdapAuthenticationSSLPEMFile() throws Exception {
 
@@ -788,6 +855,1065 @@ public class LdapBackendTest {
         Assert.assertEquals("rolemo4", new ArrayList(new TreeSet(user.getRoles())).get(2));
     }
     
+    @Test
+    public void testLdapAuthenticationPooled() throws Exception {
+
+        startLDAPServer();
+
+        // a single pooled connection must be returned after every operation, otherwise borrowing would time out
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "127.0.0.1:4", "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_POOL_ENABLED, true)
+                .put(ConfigConstants.LDAP_POOL_MIN_SIZE, 0)
+                .put(ConfigConstants.LDAP_POOL_MAX_SIZE, 1)
+                .put(ConfigConstants.LDAP_POOL_BORROW_TIMEOUT, 1000)
+                .build();
+
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+        final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+
+        for (int i = 0; i < 3; i++) {
+            final LdapUser user = (LdapUser) authc.authenticate(new AuthCredentials("jacksonm", "secret"
+                    .getBytes(StandardCharsets.UTF_8)));
+            authz.fillRoles(user, null);
+            Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getName());
+            Assert.assertEquals(2, user.getRoles().size());
+        }
+
+        try {
+            authc.authenticate(new AuthCredentials("jacksonm", "wrong".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected
+        }
+
+        Assert.assertTrue(authc.exists(new User("jacksonm")));
+        Assert.assertFalse(authc.exists(new User("doesnotexist")));
+    }
+
+    @Test
+    public void testLdapSharedPool() throws Exception {
+
+        startLDAPServer();
+
+        final Settings connectionSettings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_POOL_ENABLED, true)
+                .put(ConfigConstants.LDAP_POOL_SHARED, true)
+                .put(ConfigConstants.LDAP_POOL_MIN_SIZE, 0)
+                .put(ConfigConstants.LDAP_POOL_MAX_SIZE, 1)
+                .put(ConfigConstants.LDAP_POOL_BORROW_TIMEOUT, 1000)
+                .build();
+
+        // authc and authz differ only in their search and cache settings, so they share one pool with a single connection
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(Settings.builder().put(connectionSettings)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_ENABLED, true)
+                .build(), null);
+        final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(Settings.builder().put(connectionSettings)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .build(), null);
+
+        for (int i = 0; i < 3; i++) {
+            final LdapUser user = (LdapUser) authc.authenticate(new AuthCredentials("jacksonm", "secret"
+                    .getBytes(StandardCharsets.UTF_8)));
+            authz.fillRoles(user, null);
+            Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getName());
+            Assert.assertEquals(2, user.getRoles().size());
+        }
+
+        try {
+            authc.authenticate(new AuthCredentials("jacksonm", "wrong".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, the user bind fails on its own connection
+        }
+
+        final LdapUser user = (LdapUser) authc.authenticate(new AuthCredentials("jacksonm", "secret".getBytes(StandardCharsets.UTF_8)));
+        authz.fillRoles(user, null);
+        Assert.assertEquals(2, user.getRoles().size());
+    }
+
+    @Test
+    public void testLdapPoolClosedWithoutOwner() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_POOL_MIN_SIZE, 1)
+                .put(ConfigConstants.LDAP_POOL_PRUNE_PERIOD, 100)
+                .build();
+
+        final LDAPConnectionFactory connectionFactory = new LDAPConnectionFactory(settings, null);
+        Object owner = new Object();
+        final LdapConnectionPool pool = new LdapConnectionPool("test", settings, connectionFactory::getConnection, owner);
+
+        awaitTrue("pool filled", () -> pool.getIdleCount() == 1, 5000);
+
+        // the pool closes its connections once its owners are gone
+        owner = null;
+        awaitTrue("pool closed", () -> {
+            System.gc();
+            return pool.isClosed();
+        }, 10000);
+
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertFalse(pool.acquire(new Object()));
+    }
+
+    @Test
+    public void testLdapBindPool() throws Exception {
+
+        startLDAPServer();
+
+        final String host = "localhost:" + EmbeddedLDAPServer.ldapPort;
+        final LDAPConnectionFactory factory = new LDAPConnectionFactory(Settings.builder().putList(ConfigConstants.LDAP_HOSTS, host).build(), null);
+        final LdapConnectionPool pool = new LdapConnectionPool("test", Settings.builder().put(ConfigConstants.LDAP_POOL_MIN_SIZE, 0).build(),
+                factory::getConnection, connection -> factory.bind(connection, null), this);
+
+        // users are bound one after another on the same connection, which is bound as the service account again in between
+        for (final String password: new String[] { "secret", "wrong", "secret" }) {
+            final Connection connection = pool.borrow();
+
+            try {
+                factory.bind(connection, new BindRequest("cn=Michael Jackson,ou=people,o=TEST", new Credential(password)));
+                Assert.assertEquals("secret", password);
+            } catch (final LdapException e) {
+                Assert.assertEquals("wrong", password);
+            } finally {
+                Utils.unbindAndCloseSilently(connection);
+            }
+
+            Assert.assertEquals(1, pool.getIdleCount());
+            Assert.assertEquals(1, factory.getHealth().getOpenConnections(host));
+        }
+
+        // a connection which can not be reset is closed
+        final LdapConnectionPool failingPool = new LdapConnectionPool("test", Settings.builder().put(ConfigConstants.LDAP_POOL_MIN_SIZE, 0).build(),
+                factory::getConnection, connection -> {
+                    throw new LdapException("reset failed");
+                }, this);
+        Utils.unbindAndCloseSilently(failingPool.borrow());
+        Assert.assertEquals(0, failingPool.getIdleCount());
+
+        pool.close();
+        failingPool.close();
+        Assert.assertEquals(0, factory.getHealth().getOpenConnections(host));
+    }
+
+    @Test
+    public void testLdapAuthenticationRaceConnect() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "127.0.0.1:4", "127.0.0.1:5", "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_CONNECT_MODE, ConfigConstants.LDAP_CONNECT_MODE_RACE)
+                .put(ConfigConstants.LDAP_RACE_PARALLELISM, 2)
+                .put(ConfigConstants.LDAP_RACE_STAGGER, 50)
+                .build();
+
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+        final LdapUser user = (LdapUser) authc.authenticate(new AuthCredentials("jacksonm", "secret"
+                .getBytes(StandardCharsets.UTF_8)));
+        Assert.assertNotNull(user);
+        Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getName());
+
+        try {
+            authc.authenticate(new AuthCredentials("jacksonm", "wrong".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testLdapHostCircuitBreaker() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "127.0.0.1:4", "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_HEALTH_ENABLED, true)
+                .put(ConfigConstants.LDAP_HEALTH_FAILURE_THRESHOLD, 1)
+                .build();
+
+        final LDAPConnectionFactory factory = new LDAPConnectionFactory(settings, null);
+        Assert.assertTrue(factory.getHealth().isAvailable("127.0.0.1:4"));
+
+        Utils.unbindAndCloseSilently(factory.getConnection());
+        Assert.assertFalse(factory.getHealth().isAvailable("127.0.0.1:4"));
+        Assert.assertTrue(factory.getHealth().isAvailable("localhost:" + EmbeddedLDAPServer.ldapPort));
+        Assert.assertEquals(1, factory.getHealth().getConsecutiveFailures("127.0.0.1:4"));
+        Assert.assertTrue(factory.getHealth().getLatencyMillis("localhost:" + EmbeddedLDAPServer.ldapPort) >= 0);
+        Assert.assertEquals("127.0.0.1:4", factory.getHealth().getHostsInOrder().get(1));
+
+        // broken host is skipped now
+        Utils.unbindAndCloseSilently(factory.getConnection());
+        Assert.assertEquals(1, factory.getHealth().getConsecutiveFailures("127.0.0.1:4"));
+    }
+
+    @Test
+    public void testLdapHostSelection() throws Exception {
+
+        startLDAPServer();
+
+        final String host1 = "localhost:" + EmbeddedLDAPServer.ldapPort;
+        final String host2 = "127.0.0.1:" + EmbeddedLDAPServer.ldapPort;
+
+        for (final String strategy: new String[] { ConfigConstants.LDAP_HOST_SELECTION_ROUND_ROBIN, ConfigConstants.LDAP_HOST_SELECTION_LEAST_OUTSTANDING }) {
+
+            final Settings settings = Settings.builder()
+                    .putList(ConfigConstants.LDAP_HOSTS, host1, host2)
+                    .put(ConfigConstants.LDAP_HOST_SELECTION, strategy)
+                    .build();
+
+            final LDAPConnectionFactory factory = new LDAPConnectionFactory(settings, null);
+            final List<Connection> connections = new ArrayList<Connection>();
+
+            for (int i = 0; i < 4; i++) {
+                connections.add(factory.getConnection());
+            }
+
+            Assert.assertEquals(strategy, 2, factory.getHealth().getOpenConnections(host1));
+            Assert.assertEquals(strategy, 2, factory.getHealth().getOpenConnections(host2));
+
+            for (final Connection connection: connections) {
+                Utils.unbindAndCloseSilently(connection);
+            }
+
+            Assert.assertEquals(strategy, 0, factory.getHealth().getOpenConnections(host1));
+            Assert.assertEquals(strategy, 0, factory.getHealth().getOpenConnections(host2));
+        }
+
+        // a connection idle in a pool is open but not in use
+        final LDAPConnectionFactory factory = new LDAPConnectionFactory(Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, host1, host2)
+                .put(ConfigConstants.LDAP_HOST_SELECTION, ConfigConstants.LDAP_HOST_SELECTION_LEAST_OUTSTANDING)
+                .build(), null);
+        final LdapConnectionPool pool = new LdapConnectionPool("test", Settings.builder().put(ConfigConstants.LDAP_POOL_MIN_SIZE, 0).build(),
+                factory::getConnection, this);
+
+        final Connection first = pool.borrow();
+        final Connection second = pool.borrow();
+        Assert.assertEquals(1, factory.getHealth().getActiveConnections(host1));
+        Assert.assertEquals(1, factory.getHealth().getActiveConnections(host2));
+
+        Utils.unbindAndCloseSilently(first);
+        Assert.assertEquals(1, factory.getHealth().getOpenConnections(host1));
+        Assert.assertEquals(0, factory.getHealth().getActiveConnections(host1));
+        Assert.assertEquals(Arrays.asList(host1, host2), new HostSelectionStrategy.LeastOutstanding().select(Arrays.asList(host2, host1), factory.getHealth()));
+
+        Utils.unbindAndCloseSilently(second);
+        pool.close();
+        Assert.assertEquals(0, factory.getHealth().getOpenConnections(host1));
+        Assert.assertEquals(0, factory.getHealth().getActiveConnections(host1));
+        Assert.assertEquals(0, factory.getHealth().getOpenConnections(host2));
+    }
+
+    @Test
+    public void testLdapAuthenticationCache() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_CACHE_ENABLED, true)
+                .build();
+
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+
+        LdapUser user = (LdapUser) authc.authenticate(new AuthCredentials("jacksonm", "secret".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getName());
+        Assert.assertEquals(0, authc.getAuthenticationCacheStats().getHits());
+        Assert.assertEquals(1, authc.getAuthenticationCacheStats().getMisses());
+
+        ldapServer.stop();
+        ldapServer = null;
+
+        // served without any ldap round trip
+        user = (LdapUser) authc.authenticate(new AuthCredentials("jacksonm", "secret".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getName());
+        Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getDn());
+        Assert.assertEquals(1, authc.getAuthenticationCacheStats().getHits());
+
+        try {
+            authc.authenticate(new AuthCredentials("jacksonm", "wrong".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, wrong password is checked against ldap
+        }
+
+        authc.invalidateAuthenticationCache("jacksonm");
+
+        try {
+            authc.authenticate(new AuthCredentials("jacksonm", "secret".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, ldap is down
+        }
+    }
+
+    @Test
+    public void testLdapAuthorizationRoleCache() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_CACHE_ENABLED, true)
+                .build();
+
+        final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<User> users = new ArrayList<User>();
+
+        for (int i = 0; i < 8; i++) {
+            final User user = new User("spock");
+            users.add(user);
+            threads.add(new Thread(() -> authz.fillRoles(user, null)));
+        }
+
+        for (final Thread t: threads) {
+            t.start();
+        }
+
+        for (final Thread t: threads) {
+            t.join();
+        }
+
+        for (final User user: users) {
+            Assert.assertEquals(4, user.getRoles().size());
+        }
+
+        ldapServer.stop();
+        ldapServer = null;
+
+        // served without any ldap round trip
+        User user = new User("spock");
+        authz.fillRoles(user, null);
+        Assert.assertEquals(4, user.getRoles().size());
+        Assert.assertTrue(authz.getRoleCacheStats().getHits() > 0);
+
+        authz.invalidateRoleCache("spock");
+
+        try {
+            authz.fillRoles(new User("spock"), null);
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, ldap is down
+        }
+    }
+
+    @Test
+    public void testLdapAuthorizationRoleCacheRefreshAhead() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_CACHE_ENABLED, true)
+                .put(ConfigConstants.LDAP_AUTHZ_CACHE_REFRESH_AFTER, 10)
+                .build();
+
+        final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+        final Supplier<Set<String>> roles = () -> {
+            final User user = new User("spock");
+            authz.fillRoles(user, null);
+            return user.getRoles();
+        };
+
+        Assert.assertEquals(4, roles.get().size());
+
+        // stale, served immediately while the refresh runs in the background
+        ldapServer.applyLdif("newgroup.ldif");
+        Assert.assertFalse(roles.get().contains("newgroup"));
+
+        // the refreshed roles replace the stale ones, the entry never expires
+        awaitTrue("refreshed roles", () -> roles.get().contains("newgroup"), 5000);
+        Assert.assertEquals(1, authz.getRoleCacheStats().getMisses());
+
+        ldapServer.stop();
+        ldapServer = null;
+
+        // still served while the refreshes fail
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(5, roles.get().size());
+        }
+
+        Assert.assertEquals(1, authz.getRoleCacheStats().getMisses());
+    }
+
+    @Test
+    public void testLdapAuthorizationChangeListener() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_CACHE_ENABLED, true)
+                .put(ConfigConstants.LDAP_CHANGE_LISTENER_ENABLED, true)
+                .put(ConfigConstants.LDAP_CHANGE_LISTENER_IDLE_RESTART, 60000)
+                .build();
+
+        final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+
+        // one search below the user base and one below the role base, the role cache is dropped when they start
+        awaitTrue("listening", () -> ldapServer.getRegisteredListenerCount() == 2, 10000);
+
+        final User user = new User("spock");
+        authz.fillRoles(user, null);
+        final int roles = user.getRoles().size();
+        Assert.assertEquals(1, authz.getRoleCacheStats().getMisses());
+
+        // no restart within the test, only the reported change evicts the cached roles
+        ldapServer.applyLdif("newgroup.ldif");
+
+        awaitTrue("new role", () -> {
+            final User changed = new User("spock");
+            authz.fillRoles(changed, null);
+            return changed.getRoles().contains("newgroup") && changed.getRoles().size() == roles + 1;
+        }, 5000);
+    }
+
+    @Test
+    public void testLdapAuthorizationChangePoller() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_CACHE_ENABLED, true)
+                .put(ConfigConstants.LDAP_CHANGE_POLLER_ENABLED, true)
+                .put(ConfigConstants.LDAP_CHANGE_POLLER_INTERVAL, 200)
+                .build();
+
+        final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+
+        final User user = new User("spock");
+        authz.fillRoles(user, null);
+        final int roles = user.getRoles().size();
+
+        ldapServer.applyLdif("newgroup.ldif");
+
+        awaitTrue("evicted roles", () -> {
+            final User u = new User("spock");
+            authz.fillRoles(u, null);
+            return u.getRoles().contains("newgroup") && u.getRoles().size() == roles + 1;
+        }, 5000);
+    }
+
+    @Test
+    public void testLdapAuthorizationNestedGroupCache() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_NESTED_CACHE_ENABLED, true)
+                .build();
+
+        final LDAPAuthorizationBackend authz1 = new LDAPAuthorizationBackend(settings, null);
+        final GroupParentCache cache = GroupParentCache.forSettings(settings);
+        cache.invalidateAll();
+
+        User user = new User("spock");
+        authz1.fillRoles(user, null);
+        Assert.assertEquals(4, user.getRoles().size());
+
+        final long misses = cache.stats().getMisses();
+        final long hits = cache.stats().getHits();
+        Assert.assertTrue(misses > 0);
+
+        // a new backend instance with the same settings shares the group graph
+        final LDAPAuthorizationBackend authz2 = new LDAPAuthorizationBackend(settings, null);
+        user = new User("spock");
+        authz2.fillRoles(user, null);
+        Assert.assertEquals(4, user.getRoles().size());
+        Assert.assertEquals("nested1", new ArrayList(new TreeSet(user.getRoles())).get(1));
+        Assert.assertEquals(misses, cache.stats().getMisses());
+        Assert.assertTrue(cache.stats().getHits() > hits);
+    }
+
+    @Test
+    public void testLdapAuthorizationNestedCycle() throws Exception {
+
+        startLDAPServer();
+
+        final Settings.Builder settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})");
+
+        // cycle1 <-> cycle2 -> cycle3
+        User user = new User("cyclic");
+        new LDAPAuthorizationBackend(settings.build(), null).fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("cycle1", "cycle2", "cycle3")), new TreeSet<String>(user.getRoles()));
+
+        user = new User("cyclic");
+        new LDAPAuthorizationBackend(settings.put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_MAX_DEPTH, 1).build(), null).fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("cycle1", "cycle2")), new TreeSet<String>(user.getRoles()));
+
+        user = new User("cyclic");
+        new LDAPAuthorizationBackend(settings.put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_MAX_DEPTH, 0)
+                .put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_MAX_COUNT, 1).build(), null).fillRoles(user, null);
+        Assert.assertEquals(Collections.singleton("cycle1"), user.getRoles());
+    }
+
+    @Test
+    public void testLdapAuthorizationNestedBatched() throws Exception {
+
+        startLDAPServer();
+
+        for (final int batchSize: new int[] { 0, 2, 50 }) {
+
+            final Settings settings = Settings.builder()
+                    .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                    .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                    .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                    .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                    .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                    .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                    .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                    .put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "description")
+                    .put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE, batchSize)
+                    .build();
+
+            final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+
+            User user = new User("spock");
+            authz.fillRoles(user, null);
+            Assert.assertEquals("batch size " + batchSize, new TreeSet<String>(Arrays.asList("ceo", "dummyempty", "nested1", "nested2", "nested3", "nested4", "role2", "rolemo4")),
+                    new TreeSet<String>(user.getRoles()));
+
+            user = new User("cyclic");
+            authz.fillRoles(user, null);
+            Assert.assertEquals("batch size " + batchSize, new TreeSet<String>(Arrays.asList("cycle1", "cycle2", "cycle3")), new TreeSet<String>(user.getRoles()));
+        }
+    }
+
+    @Test
+    public void testLdapAuthorizationNestedBatchedLargeGroup() throws Exception {
+
+        startLDAPServer();
+
+        // role2 is a parent of nested1, the batched search reads all its members to tell whose parent it is
+        final String[] members = new String[5000];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = "cn=member" + i + ",ou=people,o=TEST";
+        }
+        ldapServer.addValues("cn=role2,ou=groups,o=TEST", "uniqueMember", members);
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "description")
+                .put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE, 50)
+                .build();
+
+        final User user = new User("spock");
+        new LDAPAuthorizationBackend(settings, null).fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("ceo", "dummyempty", "nested1", "nested2", "nested3", "nested4", "role2", "rolemo4")),
+                new TreeSet<String>(user.getRoles()));
+    }
+
+    @Test
+    public void testLdapAuthorizationNestedBatchedCache() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "description")
+                .put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE, 50)
+                .put(ConfigConstants.LDAP_AUTHZ_NESTED_CACHE_ENABLED, true)
+                .build();
+
+        final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+        final GroupParentCache cache = GroupParentCache.forSettings(settings);
+        cache.invalidateAll();
+
+        User user = new User("spock");
+        authz.fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("ceo", "dummyempty", "nested1", "nested2", "nested3", "nested4", "role2", "rolemo4")),
+                new TreeSet<String>(user.getRoles()));
+
+        // ceo and nested2 were searched together, only nested2 is a member of nested1
+        Assert.assertEquals(Collections.emptySet(), cache.get(new LdapName("cn=ceo,ou=groups,o=TEST")));
+        Assert.assertEquals(Collections.singleton(new LdapName("cn=nested1,ou=groups,o=TEST")), cache.get(new LdapName("cn=nested2,ou=groups,o=TEST")));
+
+        // resolved from the cached groups
+        user = new User("jacksonm");
+        authz.fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("ceo", "role2")), new TreeSet<String>(user.getRoles()));
+
+        try {
+            new LDAPAuthorizationBackend(Settings.builder().put(settings)
+                    .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(member:1.2.840.113556.1.4.1941:={0})").build(), null);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE));
+        }
+    }
+
+    @Test
+    public void testLdapAuthorizationNestedParallel() throws Exception {
+
+        startLDAPServer();
+
+        for (final boolean pooled: new boolean[] { false, true }) {
+            for (final int batchSize: new int[] { 0, 2 }) {
+
+                final Settings settings = Settings.builder()
+                        .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                        .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                        .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                        .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                        .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                        .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                        .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                        .put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "description")
+                        .put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_BATCH_SIZE, batchSize)
+                        .put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_PARALLELISM, 3)
+                        .put(ConfigConstants.LDAP_AUTHZ_NESTEDROLE_THREADS, 2)
+                        .put(ConfigConstants.LDAP_POOL_ENABLED, pooled)
+                        .build();
+
+                final LDAPAuthorizationBackend authz = new LDAPAuthorizationBackend(settings, null);
+                final String msg = "pooled " + pooled + ", batch size " + batchSize;
+
+                User user = new User("spock");
+                authz.fillRoles(user, null);
+                Assert.assertEquals(msg, new TreeSet<String>(Arrays.asList("ceo", "dummyempty", "nested1", "nested2", "nested3", "nested4", "role2", "rolemo4")),
+                        new TreeSet<String>(user.getRoles()));
+
+                user = new User("cyclic");
+                authz.fillRoles(user, null);
+                Assert.assertEquals(msg, new TreeSet<String>(Arrays.asList("cycle1", "cycle2", "cycle3")), new TreeSet<String>(user.getRoles()));
+            }
+        }
+    }
+
+    @Test
+    public void testLdapAttributeProjection() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERNAME_ATTRIBUTE, "uid")
+                .putList(ConfigConstants.LDAP_AUTHC_USER_ATTRIBUTES, "mail")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .build();
+
+        final LdapUser user = (LdapUser) new LDAPAuthenticationBackend(settings, null).authenticate(new AuthCredentials("jacksonm", "secret"
+                .getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals("jacksonm", user.getName());
+        Assert.assertEquals("jacksonm@example.com", user.getCustomAttributesMap().get("attr.ldap.mail"));
+        Assert.assertNull(user.getUserEntry().getAttribute("ou"));
+        Assert.assertNull(user.getUserEntry().getAttribute("userpassword"));
+
+        new LDAPAuthorizationBackend(settings, null).fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("ceo", "role2")), new TreeSet<String>(user.getRoles()));
+    }
+
+    @Test
+    public void testLdapPagedSearch() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .build();
+
+        Connection connection = null;
+
+        try {
+            connection = LDAPAuthorizationBackend.getConnection(settings, null);
+
+            final List<LdapEntry> all = LdapHelper.search(connection, "ou=groups,o=TEST", "(objectClass=groupOfUniqueNames)", SearchScope.SUBTREE);
+            Assert.assertTrue(all.size() > 5);
+
+            final List<String> paged = new ArrayList<String>();
+            final int count = LdapHelper.search(connection, "ou=groups,o=TEST", "(objectClass=groupOfUniqueNames)", SearchScope.SUBTREE,
+                    new LdapHelper.SearchLimits(2, 0, 0), e -> paged.add(e.getDn()), ReturnAttributes.NONE.value());
+            Assert.assertEquals(all.size(), count);
+            Assert.assertEquals(all.size(), paged.size());
+
+            final List<String> limited = new ArrayList<String>();
+            LdapHelper.search(connection, "ou=groups,o=TEST", "(objectClass=groupOfUniqueNames)", SearchScope.SUBTREE,
+                    new LdapHelper.SearchLimits(0, 3, 0), e -> limited.add(e.getDn()), "cn");
+            Assert.assertTrue(String.valueOf(limited), limited.size() <= 3);
+        } finally {
+            Utils.unbindAndCloseSilently(connection);
+        }
+
+        final Settings authzSettings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_RESOLVE_NESTED_ROLES, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "description")
+                .put(ConfigConstants.LDAP_SEARCH_PAGE_SIZE, 1)
+                .build();
+
+        final User user = new User("spock");
+        new LDAPAuthorizationBackend(authzSettings, null).fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("ceo", "dummyempty", "nested1", "nested2", "nested3", "nested4", "role2", "rolemo4")),
+                new TreeSet<String>(user.getRoles()));
+    }
+
+    @Test
+    public void testLdapConfigValidation() throws Exception {
+
+        final Settings invalidUserSearch = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0}").build();
+
+        try {
+            new LDAPAuthenticationBackend(invalidUserSearch, null);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(ConfigConstants.LDAP_AUTHC_USERSEARCH));
+        }
+
+        try {
+            new LDAPAuthorizationBackend(Settings.builder().put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(&(uniqueMember={0})").build(), null);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(ConfigConstants.LDAP_AUTHZ_ROLESEARCH));
+        }
+
+        try {
+            new LDAPAuthorizationBackend(Settings.builder().putList(ConfigConstants.LDAP_AUTHZ_SKIP_USERS, "/cn=(unclosed/").build(), null);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            //expected
+        }
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .putList(ConfigConstants.LDAP_AUTHZ_SKIP_USERS, "/cn=Michael J[a-z]+,ou=people,o=TEST/")
+                .build();
+
+        final LdapUser user = (LdapUser) new LDAPAuthenticationBackend(settings, null).authenticate(new AuthCredentials("jacksonm", "secret"
+                .getBytes(StandardCharsets.UTF_8)));
+        new LDAPAuthorizationBackend(settings, null).fillRoles(user, null);
+        Assert.assertEquals(0, user.getRoles().size());
+    }
+
+    @Test
+    public void testLdapAuthorizationReuseUserEntry() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "description")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH_ENABLED, false)
+                .build();
+
+        final LdapUser user = (LdapUser) new LDAPAuthenticationBackend(settings, null).authenticate(new AuthCredentials("spock", "spocksecret"
+                .getBytes(StandardCharsets.UTF_8)));
+        final LdapUser staleUser = new LdapUser(user.getName(), user.getOriginalUsername(), user.getUserEntry(), null,
+                System.currentTimeMillis() - 60000, user.getUserEntryAttributes(), user.getUserEntryDirectory());
+        final LdapUser partialUser = (LdapUser) new LDAPAuthenticationBackend(Settings.builder().put(settings)
+                .putList(ConfigConstants.LDAP_AUTHC_USER_ATTRIBUTES, "cn").put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "cn").build(), null)
+                .authenticate(new AuthCredentials("spock", "spocksecret".getBytes(StandardCharsets.UTF_8)));
+
+        ldapServer.stop();
+        ldapServer = null;
+
+        // roles from the attributes of the entry read during authentication, no ldap round trip
+        new LDAPAuthorizationBackend(settings, null).fillRoles(user, null);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("dummyempty", "rolemo4")), new TreeSet<String>(user.getRoles()));
+
+        try {
+            new LDAPAuthorizationBackend(Settings.builder().put(settings).put(ConfigConstants.LDAP_AUTHZ_USER_ENTRY_MAX_AGE, 1000).build(), null)
+                    .fillRoles(staleUser, null);
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, the stale entry is read again but ldap is down
+        }
+
+        try {
+            // read with cn only, but roles are taken from description
+            new LDAPAuthorizationBackend(settings, null).fillRoles(partialUser, null);
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, the entry lacks description and is read again but ldap is down
+        }
+
+        try {
+            new LDAPAuthorizationBackend(Settings.builder().put(settings).putList(ConfigConstants.LDAP_HOSTS, "127.0.0.1:4").build(), null)
+                    .fillRoles(user, null);
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, the entry comes from another directory
+        }
+    }
+
+    @Test
+    public void testLdapAuthenticationNegativeCache() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_FAKE_LOGIN_ENABLED, true)
+                .put(ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_ENABLED, true)
+                .build();
+
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+
+        Assert.assertNotNull(authc.authenticate(new AuthCredentials("jacksonm", "secret".getBytes(StandardCharsets.UTF_8))));
+
+        try {
+            authc.authenticate(new AuthCredentials("doesnotexist", "secret".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, fake login
+        }
+
+        Assert.assertFalse(authc.exists(new User("doesnotexist")));
+        Assert.assertEquals(1, authc.getNegativeCacheStats().getHits());
+
+        // the same key for a name which needs escaping, whether cached by authenticate or by exists
+        try {
+            authc.authenticate(new AuthCredentials("does(not)exist*", "secret".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, fake login
+        }
+
+        Assert.assertFalse(authc.exists(new User("does(not)exist*")));
+        Assert.assertEquals(2, authc.getNegativeCacheStats().getHits());
+
+        ldapServer.stop();
+        ldapServer = null;
+
+        // answered from the negative cache without a connection
+        try {
+            authc.authenticate(new AuthCredentials("doesnotexist", "secret".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("No user"));
+        }
+
+        Assert.assertFalse(authc.exists(new User("doesnotexist")));
+        Assert.assertEquals(4, authc.getNegativeCacheStats().getHits());
+
+        authc.invalidateAuthenticationCache("doesnotexist");
+
+        try {
+            authc.authenticate(new AuthCredentials("doesnotexist", "secret".getBytes(StandardCharsets.UTF_8)));
+            Assert.fail();
+        } catch (final ElasticsearchSecurityException e) {
+            //expected, ldap is down
+            Assert.assertFalse(e.getMessage(), e.getMessage().contains("No user"));
+        }
+    }
+
+    @Test
+    public void testLdapFindUsers() throws Exception {
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(&(objectClass=inetOrgPerson)(uid={0}))")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHC_EXISTS_BATCH_SIZE, 3)
+                .put(ConfigConstants.LDAP_AUTHC_NEGATIVE_CACHE_ENABLED, true)
+                .build();
+
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+        final Map<String, LdapEntry> users = authc.findUsers(Arrays.asList("jacksonm", "spock", "doesnotexist", "JacksonM", "ssign", "*", "spock"));
+
+        Assert.assertEquals(6, users.size());
+        Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", users.get("jacksonm").getDn());
+        Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", users.get("JacksonM").getDn());
+        Assert.assertEquals("cn=Captain Spock,ou=people,o=TEST", users.get("spock").getDn());
+        Assert.assertEquals("cn=Special\\, Sign,ou=people,o=TEST", users.get("ssign").getDn());
+        Assert.assertNull(users.get("doesnotexist"));
+        Assert.assertNull(users.get("*"));
+        Assert.assertTrue(users.containsKey("*"));
+
+        Assert.assertNull(authc.findUsers(Collections.singletonList("doesnotexist")).get("doesnotexist"));
+        Assert.assertEquals(1, authc.getNegativeCacheStats().getHits());
+
+        // no attribute to attribute the entries by, searched name by name
+        final Map<String, LdapEntry> byMail = new LDAPAuthenticationBackend(Settings.builder().put(settings)
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(mail={0}@example.com)").build(), null)
+                .findUsers(Arrays.asList("spock", "doesnotexist"));
+        Assert.assertEquals("cn=Captain Spock,ou=people,o=TEST", byMail.get("spock").getDn());
+        Assert.assertNull(byMail.get("doesnotexist"));
+    }
+
+    @Test
+    public void testLdapAuthenticationUserDnTemplate() throws Exception {
+
+        try {
+            new LDAPAuthenticationBackend(Settings.builder().put(ConfigConstants.LDAP_AUTHC_USERDN_TEMPLATE, "ou=people,o=TEST").build(), null);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            //expected, no {0}
+        }
+
+        startLDAPServer();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_AUTHC_USERDN_TEMPLATE, "cn={0},ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHC_USERNAME_ATTRIBUTE, "uid")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH, "(uniqueMember={0})")
+                .build();
+
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+
+        final LdapUser user = (LdapUser) authc.authenticate(new AuthCredentials("Michael Jackson", "secret".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals("jacksonm", user.getName());
+        Assert.assertEquals("cn=Michael Jackson,ou=people,o=TEST", user.getDn());
+        Assert.assertNotNull(user.getUserEntry().getAttribute("mail"));
+
+        new LDAPAuthorizationBackend(settings, null).fillRoles(user, null);
+        Assert.assertEquals(2, user.getRoles().size());
+
+        Assert.assertEquals("ssign", authc.authenticate(new AuthCredentials("Special, Sign", "ssignsecret".getBytes(StandardCharsets.UTF_8))).getName());
+
+        for (final String[] credentials: new String[][] { { "Michael Jackson", "wrong" }, { "doesnotexist", "secret" } }) {
+            try {
+                authc.authenticate(new AuthCredentials(credentials[0], credentials[1].getBytes(StandardCharsets.UTF_8)));
+                Assert.fail(credentials[0] + "/" + credentials[1]);
+            } catch (final ElasticsearchSecurityException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testLdapAuthenticationUserDnTemplateNoSelfRead() throws Exception {
+
+        startLDAPServer();
+        ldapServer.enableAccessControl("acl-noselfread.ldif");
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.LDAP_HOSTS, "localhost:" + EmbeddedLDAPServer.ldapPort)
+                .put(ConfigConstants.LDAP_BIND_DN, "cn=Michael Jackson,ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_PASSWORD, "secret")
+                .put(ConfigConstants.LDAP_AUTHC_USERDN_TEMPLATE, "cn={0},ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHC_USERSEARCH, "(uid={0})")
+                .put(ConfigConstants.LDAP_AUTHC_USERBASE, "ou=people,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHC_CACHE_ENABLED, true)
+                .put(ConfigConstants.LDAP_AUTHZ_ROLEBASE, "ou=groups,o=TEST")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLENAME, "cn")
+                .put(ConfigConstants.LDAP_AUTHZ_USERROLENAME, "description")
+                .put(ConfigConstants.LDAP_AUTHZ_ROLESEARCH_ENABLED, false)
+                .build();
+
+        final LDAPAuthenticationBackend authc = new LDAPAuthenticationBackend(settings, null);
+        final AuthCredentials credentials = new AuthCredentials("Captain Spock", "spocksecret".getBytes(StandardCharsets.UTF_8));
+
+        LdapUser user = (LdapUser) authc.authenticate(credentials);
+        Assert.assertEquals("cn=Captain Spock,ou=people,o=TEST", user.getDn());
+        Assert.assertNull(user.getUserEntry().getAttribute("description"));
+        Assert.assertEquals(0, user.getUserEntryTimestamp());
+
+        // the incomplete entry is not cached
+        user = (LdapUser) authc.authenticate(credentials);
+        Assert.assertEquals(0, authc.getAuthenticationCacheStats().getHits());
+
+        // read again with the service account, the roles are taken from the description of the entry
+        new LDAPAuthorizationBackend(settings, null).fillRoles(user, null);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("dummyempty", "rolemo4")), user.getRoles());
+    }
+
+    private static void awaitTrue(final String message, final BooleanSupplier condition, final long timeout) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail(message + " not reached within " + timeout + " ms");
+            }
+            Thread.sleep(20);
+        }
+    }
+
     @After
     public void tearDown() throws Exception {
 
@@ -14,12 +14,24 @@
 
 package com.floragunn.dlic.auth.ldap;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.floragunn.dlic.auth.ldap.util.FilterTemplate;
+import com.floragunn.dlic.auth.ldap.util.SingleFlight;
 import com.floragunn.dlic.auth.ldap.util.Utils;
 
 public class UtilsTest {
@@ -40,6 +52,138 @@ public class UtilsTest {
         Assert.assertNotEquals("\\5c\\28abc\\2adef\\29\\00", Utils.escapeStringRfc2254(Utils.escapeStringRfc2254("\\(abc*def)\0")));
     }
     
+    @Test
+    public void testRfc2254StringEscapeEquivalence() throws Exception {
+        final long seed = System.nanoTime();
+        final Random random = new Random(seed);
+        final char[] alphabet = "abcXYZ019 ,=+<>;#\"\\*()\000\u00e4\u20ac".toCharArray();
+
+        for (int i = 0; i < 20000; i++) {
+            final char[] chars = new char[random.nextInt(40)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = random.nextInt(4) == 0 ? (char) random.nextInt(Character.MAX_VALUE + 1) : alphabet[random.nextInt(alphabet.length)];
+            }
+
+            final String str = new String(chars);
+            final String escaped = Utils.escapeStringRfc2254(str);
+
+            Assert.assertEquals("seed " + seed + ", input '" + str + "'", escapeStringRfc2254WithTokenizer(str), escaped);
+            Assert.assertEquals("seed " + seed + ", input '" + str + "'", escaped, Utils.appendEscapedRfc2254(new StringBuilder(), str).toString());
+
+            if (escaped.equals(str)) {
+                Assert.assertSame(str, escaped);
+            }
+        }
+
+        Assert.assertNull(Utils.escapeStringRfc2254(null));
+    }
+
+    // the former StringTokenizer based implementation
+    private static String escapeStringRfc2254WithTokenizer(final String str) {
+
+        if (str == null || str.length() == 0) {
+            return str;
+        }
+
+        final StringTokenizer tok = new StringTokenizer(str, "\\*()\000", true);
+
+        if (tok.countTokens() == 0) {
+            return str;
+        }
+
+        final StringBuilder out = new StringBuilder();
+        while (tok.hasMoreTokens()) {
+            final String s = tok.nextToken();
+
+            if (s.equals("*")) {
+                out.append("\\2a");
+            } else if (s.equals("(")) {
+                out.append("\\28");
+            } else if (s.equals(")")) {
+                out.append("\\29");
+            } else if (s.equals("\\")) {
+                out.append("\\5c");
+            } else if (s.equals("\000")) {
+                out.append("\\00");
+            } else {
+                out.append(s);
+            }
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testFilterTemplate() throws Exception {
+        final String user = "cn=a*(b)\\,o=x";
+        final String pattern = "(&(member={0})(uid={1})(x={2})(y={0}))";
+
+        Assert.assertEquals(pattern.replace("{0}", Utils.escapeStringRfc2254(user)).replace("{1}", "u*").replace("{2}", "v"),
+                FilterTemplate.compile(pattern).render(1, user, "u*", "v"));
+        Assert.assertEquals("(&(member=\\2a)(uid=\\2a)(x={2})(y=\\2a))", FilterTemplate.compile(pattern).render(3, "*", "*"));
+        Assert.assertEquals("(&(member=a)(uid={1})(x={2})(y=a))", FilterTemplate.compile(pattern).render(0, "a", null, null));
+        Assert.assertEquals("uid=a", FilterTemplate.compile("uid={0}").render(1, "a"));
+        // values are not scanned for placeholders again, unknown placeholders are literals
+        Assert.assertEquals("{1}{3}{", FilterTemplate.compile("{0}{3}{").render(3, "{1}", "x"));
+        Assert.assertEquals("", FilterTemplate.compile("").render(1, "a"));
+        Assert.assertTrue(FilterTemplate.compile(pattern).uses(2));
+        Assert.assertFalse(FilterTemplate.compile("(member={0})").uses(1));
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>(10000);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            final Future<String> first = executor.submit(() -> singleFlight.execute("k", () -> {
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "v";
+            }, v -> v + "'"));
+
+            while (singleFlight.size() == 0) {
+                Thread.sleep(1);
+            }
+
+            final List<Future<String>> waiters = new ArrayList<Future<String>>();
+            for (int i = 0; i < 3; i++) {
+                waiters.add(executor.submit(() -> singleFlight.execute("k", () -> "w" + calls.incrementAndGet(), v -> v + "'")));
+            }
+
+            // a different key is not coalesced
+            Assert.assertEquals("other", singleFlight.execute("other", () -> "other", v -> v));
+
+            Thread.sleep(100);
+            release.countDown();
+
+            Assert.assertEquals("v", first.get());
+            for (final Future<String> waiter: waiters) {
+                Assert.assertEquals("v'", waiter.get());
+            }
+            Assert.assertEquals(1, calls.get());
+            Assert.assertEquals(0, singleFlight.size());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // failures are not remembered
+        try {
+            singleFlight.execute("k", () -> {
+                throw new IllegalArgumentException("failed");
+            }, v -> v);
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+        Assert.assertEquals("v", singleFlight.execute("k", () -> "v", v -> v + "'"));
+    }
+
     @Test
     public void testLDAPName() throws Exception {
         //same ldapname
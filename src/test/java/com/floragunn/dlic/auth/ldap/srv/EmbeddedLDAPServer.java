@@ -21,8 +21,11 @@ import java.io.StringWriter;
 import org.apache.commons.io.IOUtils;
 import org.apache.directory.api.ldap.model.constants.SupportedSaslMechanisms;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.ldif.LdifEntry;
 import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.annotations.CreateLdapServer;
 import org.apache.directory.server.annotations.CreateTransport;
@@ -134,4 +137,27 @@ public class EmbeddedLDAPServer {
 
         return i;
     }
-}
\ No newline at end of file
+
+    public void addValues(final String dn, final String attribute, final String... values) throws Exception {
+        directoryService.getAdminSession().modify(new Dn(schemaManager, dn),
+                new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, attribute, values));
+    }
+
+    /**
+     * @return the number of persistent searches (and other listeners) currently registered with the directory
+     */
+    public int getRegisteredListenerCount() {
+        return directoryService.getEventService().getRegistrationEntries().size();
+    }
+
+    /**
+     * Make o=TEST an access control area with the access control subentry of {@code ldifFile} and turn access control on
+     */
+    public void enableAccessControl(final String ldifFile) throws Exception {
+        // first, otherwise the subentry is not picked up
+        directoryService.setAccessControlEnabled(true);
+        directoryService.getAdminSession().modify(new Dn(schemaManager, "o=TEST"),
+                new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "administrativeRole", "accessControlSpecificArea"));
+        applyLdif(ldifFile);
+    }
+}